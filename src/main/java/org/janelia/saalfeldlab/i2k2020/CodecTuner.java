@@ -0,0 +1,372 @@
+package org.janelia.saalfeldlab.i2k2020;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+
+import org.janelia.saalfeldlab.i2k2020.util.Grid;
+import org.janelia.saalfeldlab.i2k2020.util.IOScheduler;
+import org.janelia.saalfeldlab.i2k2020.util.Resume;
+import org.janelia.saalfeldlab.n5.Compression;
+import org.janelia.saalfeldlab.n5.CompressionAdapter;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.DefaultBlockReader;
+import org.janelia.saalfeldlab.n5.DefaultBlockWriter;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+import org.janelia.saalfeldlab.n5.universe.N5Factory;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.NativeType;
+import net.imglib2.view.Views;
+import picocli.CommandLine;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
+
+/**
+ * Benchmark codecs and block sizes on sample blocks of a dataset and
+ * recommend the configuration with the best compression ratio that meets
+ * read and write throughput goals, or copy the dataset with it.
+ *
+ * Codecs are given as N5 compression JSON, e.g.
+ * <code>{"type":"gzip","level":6}</code>, so every compression that N5 can
+ * find on the classpath can be tested, e.g. blosc through n5-blosc or JPEG
+ * through n5-jpeg.  Codecs that are not available are skipped.
+ *
+ * @author Stephan Saalfeld
+ */
+@Command(name = "i2k2020-codec-tuner")
+public class CodecTuner implements Callable<Void> {
+
+	@Option(
+			names = {"-i", "--n5url"},
+			required = true,
+			description = "N5 URL, e.g. 'https://janelia-cosem.s3.amazonaws.com/jrc_hela-2/jrc_hela-2.n5'")
+	private String n5Url = null;
+
+	@Option(
+			names = {"-d", "--n5dataset"},
+			required = true,
+			description = "N5 dataset, e.g. '/em/fibsem-uint16/s4'")
+	private String n5Dataset = null;
+
+	@Option(
+			names = {"-c", "--codec"},
+			required = false,
+			description = "N5 compression JSON, can be repeated, e.g. -c '{\"type\":\"gzip\",\"level\":6}', defaults to raw, gzip, bzip2, lz4, xz, blosc, and jpeg")
+	private List<String> codecs = Arrays.asList(
+			"{\"type\":\"raw\"}",
+			"{\"type\":\"gzip\",\"level\":1}",
+			"{\"type\":\"gzip\",\"level\":6}",
+			"{\"type\":\"bzip2\",\"blockSize\":9}",
+			"{\"type\":\"lz4\",\"blockSize\":65536}",
+			"{\"type\":\"xz\",\"preset\":6}",
+			"{\"type\":\"blosc\",\"cname\":\"zstd\",\"clevel\":5,\"shuffle\":1,\"blocksize\":0,\"nthreads\":1}",
+			"{\"type\":\"jpeg\",\"quality\":90}");
+
+	@Option(
+			names = {"-b", "--blocksize"},
+			required = false,
+			description = "block size, can be repeated, e.g. -b 64,64,64 -b 256,256,32, defaults to the block size of the dataset")
+	private List<String> blockSizes = new ArrayList<>();
+
+	@Option(
+			names = {"-n", "--samples"},
+			required = false,
+			description = "number of sample blocks per block size, e.g. 16")
+	private int numSamples = 16;
+
+	@Option(
+			names = {"--seed"},
+			required = false,
+			description = "random seed for picking sample blocks, e.g. 42")
+	private long seed = 42;
+
+	@Option(
+			names = {"--threads"},
+			required = false,
+			description = "number of threads that encode or decode at the same time, defaults to the number of cores")
+	private int numThreads = Runtime.getRuntime().availableProcessors();
+
+	@Option(
+			names = {"--readgoal"},
+			required = false,
+			description = "required decode throughput with all threads in uncompressed MB/s, e.g. 1000")
+	private double readGoal = 0;
+
+	@Option(
+			names = {"--writegoal"},
+			required = false,
+			description = "required encode throughput with all threads in uncompressed MB/s, e.g. 200")
+	private double writeGoal = 0;
+
+	@Option(
+			names = {"-o", "--n5outurl"},
+			required = false,
+			description = "copy the dataset with the recommended configuration into this N5 URL, e.g. '/home/saalfeld/tmp/jrc_hela-2.n5'")
+	private String n5OutUrl = null;
+
+	@Option(
+			names = {"-e", "--n5outdataset"},
+			required = false,
+			description = "output dataset for the copy, defaults to the input dataset")
+	private String n5OutDataset = null;
+
+	/**
+	 * Start the tool.  We ignore the exit code returned by
+	 * {@link CommandLine#execute(String...)} but this can be useful in other
+	 * applications.
+	 *
+	 * @param args
+	 */
+	public static void main(final String... args) {
+
+		new CommandLine(new CodecTuner()).execute(args);
+	}
+
+	/**
+	 * Benchmark of one codec and block size over all samples.
+	 */
+	public static class Result {
+
+		public final String codec;
+		public final Compression compression;
+		public final int[] blockSize;
+
+		public long rawBytes = 0;
+		public long encodedBytes = 0;
+		public long encodeNanos = 0;
+		public long decodeNanos = 0;
+
+		public Result(final String codec, final Compression compression, final int[] blockSize) {
+
+			this.codec = codec;
+			this.compression = compression;
+			this.blockSize = blockSize;
+		}
+
+		public double ratio() {
+
+			return (double)rawBytes / encodedBytes;
+		}
+
+		/**
+		 * @return single thread encode throughput in uncompressed MB/s
+		 */
+		public double encodeThroughput() {
+
+			return rawBytes * 1000.0 / encodeNanos;
+		}
+
+		/**
+		 * @return single thread decode throughput in uncompressed MB/s
+		 */
+		public double decodeThroughput() {
+
+			return rawBytes * 1000.0 / decodeNanos;
+		}
+
+		public boolean meets(final double readGoal, final double writeGoal, final int numThreads) {
+
+			return
+					decodeThroughput() * numThreads >= readGoal &&
+					encodeThroughput() * numThreads >= writeGoal;
+		}
+
+		@Override
+		public String toString() {
+
+			return String.format(
+					"%-16s %-80s ratio %6.2f, encode %8.1f MB/s, decode %8.1f MB/s",
+					Arrays.toString(blockSize),
+					codec,
+					ratio(),
+					encodeThroughput(),
+					decodeThroughput());
+		}
+	}
+
+	/**
+	 * Pick sample blocks of a block size, preferring blocks that are not
+	 * cropped at the border of the dataset.
+	 *
+	 * @param dimensions
+	 * @param blockSize
+	 * @param numSamples
+	 * @param random
+	 * @return
+	 */
+	public static List<long[][]> samples(
+			final long[] dimensions,
+			final int[] blockSize,
+			final int numSamples,
+			final Random random) {
+
+		final List<long[][]> grid = Grid.create(dimensions, blockSize);
+		final ArrayList<long[][]> complete = new ArrayList<>();
+		for (final long[][] gridBlock : grid) {
+			boolean isComplete = true;
+			for (int d = 0; d < blockSize.length && isComplete; ++d)
+				isComplete = gridBlock[1][d] == blockSize[d];
+			if (isComplete)
+				complete.add(gridBlock);
+		}
+		final List<long[][]> candidates = complete.isEmpty() ? grid : complete;
+
+		final ArrayList<long[][]> samples = new ArrayList<>();
+		for (int i = 0; i < numSamples; ++i)
+			samples.add(candidates.get(random.nextInt(candidates.size())));
+		return samples;
+	}
+
+	/**
+	 * Encode and decode sample blocks of img with one codec.  The first
+	 * sample is encoded and decoded once before timing, to warm up the JIT.
+	 *
+	 * @param <T>
+	 * @param img
+	 * @param samples
+	 * @param result
+	 * @throws Exception
+	 */
+	public static <T extends NativeType<T>> void benchmark(
+			final RandomAccessibleInterval<T> img,
+			final List<long[][]> samples,
+			final Result result) throws Exception {
+
+		final DatasetAttributes attributes = new DatasetAttributes(
+				img.dimensionsAsLongArray(),
+				result.blockSize,
+				N5Utils.dataType(net.imglib2.util.Util.getTypeFromInterval(img)),
+				result.compression);
+
+		for (int i = -1; i < samples.size(); ++i) {
+
+			final long[][] sample = samples.get(Math.max(0, i));
+			final DataBlock<?> dataBlock = Resume.dataBlock(
+					Views.offsetInterval(img, sample[0], sample[1]),
+					attributes,
+					sample[2]);
+
+			final ByteArrayOutputStream out = new ByteArrayOutputStream();
+			long t = System.nanoTime();
+			DefaultBlockWriter.writeBlock(out, attributes, dataBlock);
+			final long encodeNanos = System.nanoTime() - t;
+
+			final byte[] bytes = out.toByteArray();
+			t = System.nanoTime();
+			DefaultBlockReader.readBlock(new ByteArrayInputStream(bytes), attributes, sample[2]);
+			final long decodeNanos = System.nanoTime() - t;
+
+			if (i >= 0) {
+				result.rawBytes += dataBlock.toByteBuffer().capacity();
+				result.encodedBytes += bytes.length;
+				result.encodeNanos += encodeNanos;
+				result.decodeNanos += decodeNanos;
+			}
+		}
+	}
+
+	/**
+	 * Returns the result with the best compression ratio that meets the
+	 * throughput goals, or null if none does.
+	 *
+	 * @param results
+	 * @param readGoal
+	 * @param writeGoal
+	 * @param numThreads
+	 * @return
+	 */
+	public static Result recommend(
+			final List<Result> results,
+			final double readGoal,
+			final double writeGoal,
+			final int numThreads) {
+
+		Result best = null;
+		for (final Result result : results)
+			if (result.meets(readGoal, writeGoal, numThreads) && (best == null || result.ratio() > best.ratio()))
+				best = result;
+		return best;
+	}
+
+	@Override
+	public Void call() throws Exception {
+
+		run();
+		return null;
+	}
+
+	private final <T extends NativeType<T>> void run() throws Exception {
+
+		final N5Reader n5 = new N5Factory().openReader(n5Url);
+		final DatasetAttributes attributes = n5.getDatasetAttributes(n5Dataset);
+		final RandomAccessibleInterval<T> img = N5Utils.open(n5, n5Dataset);
+
+		final ArrayList<int[]> candidateBlockSizes = new ArrayList<>();
+		if (blockSizes.isEmpty())
+			candidateBlockSizes.add(attributes.getBlockSize());
+		else
+			for (final String blockSize : blockSizes)
+				candidateBlockSizes.add(Arrays.stream(blockSize.split(",")).mapToInt(Integer::parseInt).toArray());
+
+		/* parse codecs like N5 parses the compression attribute */
+		final Gson gson = new GsonBuilder()
+				.registerTypeHierarchyAdapter(Compression.class, CompressionAdapter.getJsonAdapter())
+				.create();
+
+		final ArrayList<Result> results = new ArrayList<>();
+		for (final int[] blockSize : candidateBlockSizes) {
+
+			final List<long[][]> samples = samples(attributes.getDimensions(), blockSize, numSamples, new Random(seed));
+
+			for (final String codec : codecs) {
+				final Result result;
+				try {
+					final Compression compression = gson.fromJson(codec, Compression.class);
+					if (compression == null)
+						throw new IllegalArgumentException("unknown compression type");
+					result = new Result(codec, compression, blockSize);
+					benchmark(img, samples, result);
+				} catch (final Exception | LinkageError e) {
+					/* e.g. blosc without its native library */
+					System.out.println(String.format("%-16s %-80s skipped: %s", Arrays.toString(blockSize), codec, e.getMessage()));
+					continue;
+				}
+				System.out.println(result);
+				results.add(result);
+			}
+		}
+
+		final Result best = recommend(results, readGoal, writeGoal, numThreads);
+		if (best == null) {
+			System.out.println(
+					String.format(
+							"No configuration reaches %.1f MB/s read and %.1f MB/s write with %d threads.",
+							readGoal,
+							writeGoal,
+							numThreads));
+			return;
+		}
+		System.out.println("Recommended: " + best);
+
+		if (n5OutUrl != null) {
+			final String dataset = n5OutDataset == null ? n5Dataset : n5OutDataset;
+			System.out.println("Copy to " + n5OutUrl + dataset + "...");
+			try (
+					final N5Writer n5Writer = new N5Factory().openWriter(n5OutUrl);
+					final IOScheduler scheduler = new IOScheduler(64, numThreads)) {
+				scheduler.save(img, n5Writer, dataset, best.blockSize, best.compression, false);
+			}
+		}
+	}
+}
@@ -0,0 +1,530 @@
+package org.janelia.saalfeldlab.i2k2020;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+
+import org.janelia.saalfeldlab.i2k2020.util.Lazy;
+import org.janelia.saalfeldlab.i2k2020.util.Lines;
+
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.img.basictypeaccess.AccessFlags;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+/**
+ * Expression trees of the {@link Functions} primitives that are compiled
+ * into a single fused loop per block.
+ *
+ * Chaining {@link Functions} builds nested converted views, so every voxel
+ * access goes through all layers of the chain, and gradients of gradients
+ * read the same neighbors many times.  An {@link Expression} instead copies
+ * each source once per block, with the halo that the whole expression
+ * needs, into a double array, and compiles the tree into nested lambdas
+ * that read these arrays by flat index.  Sources that are used more than
+ * once, e.g. in the gradients along all axes, are copied only once.
+ * Subexpressions that are used more than once, e.g. a gradient that is
+ * squared, or that are read at neighboring positions by a gradient, are
+ * evaluated once per block into a buffer that their users read, so no
+ * subexpression is evaluated twice at the same position.  The result is a
+ * cell generator for {@link Lazy#generate}.
+ *
+ * <pre>
+ * final Expression img = Expression.source(Views.extendMirrorSingle(imgDoubles));
+ * final Expression gradientX = Expression.centerGradient(img, 0);
+ * final Expression gradientY = Expression.centerGradient(img, 1);
+ * final Expression magnitude = gradientX.mul(gradientX).add(gradientY.mul(gradientY));
+ * final CachedCellImg&lt;DoubleType, ?&gt; result = magnitude.generate(interval, blockSize, new DoubleType(), AccessFlags.setOf());
+ * </pre>
+ *
+ * @author Stephan Saalfeld
+ */
+public interface Expression {
+
+	/**
+	 * A compiled expression that returns the value at a flat index into the
+	 * padded block of the sources.
+	 */
+	@FunctionalInterface
+	public static interface Kernel {
+
+		public double eval(final int i);
+	}
+
+	/**
+	 * The arrays of the sources and shared subexpressions of a block and
+	 * their strides.
+	 */
+	public static class Context {
+
+		private final IdentityHashMap<Expression, double[]> buffers;
+		private final int[] strides;
+
+		Context(final IdentityHashMap<Expression, double[]> buffers, final int[] strides) {
+
+			this.buffers = buffers;
+			this.strides = strides;
+		}
+
+		/**
+		 * @param e
+		 * @return the array of a source or shared subexpression, null if e is
+		 *     not buffered
+		 */
+		public double[] buffer(final Expression e) {
+
+			return buffers.get(e);
+		}
+
+		/**
+		 * Compile an operand, reading its array if it is buffered.
+		 *
+		 * @param e
+		 * @return
+		 */
+		public Kernel kernel(final Expression e) {
+
+			final double[] data = buffers.get(e);
+			if (data != null)
+				return i -> data[i];
+			return e.kernel(this);
+		}
+
+		public int stride(final int d) {
+
+			return strides[d];
+		}
+	}
+
+	/**
+	 * Compile this expression for a block.
+	 *
+	 * @param context
+	 * @return
+	 */
+	public Kernel kernel(final Context context);
+
+	/**
+	 * Grow halo to include the halo that this expression needs around a
+	 * block.
+	 *
+	 * @param halo
+	 */
+	public void halo(final int[] halo);
+
+	/**
+	 * Collect the sources of this expression.
+	 *
+	 * @param sources
+	 */
+	public void sources(final Set<Source> sources);
+
+	/**
+	 * The operands of this expression, once per use, i.e. operands that are
+	 * read at several positions per voxel are listed once per position.
+	 *
+	 * @return
+	 */
+	public default List<Expression> operands() {
+
+		return Collections.emptyList();
+	}
+
+	public static class Source implements Expression {
+
+		private final RandomAccessible<? extends RealType<?>> source;
+
+		public Source(final RandomAccessible<? extends RealType<?>> source) {
+
+			this.source = source;
+		}
+
+		public RandomAccessible<? extends RealType<?>> getSource() {
+
+			return source;
+		}
+
+		@Override
+		public Kernel kernel(final Context context) {
+
+			final double[] data = context.buffer(this);
+			return i -> data[i];
+		}
+
+		@Override
+		public void halo(final int[] halo) {}
+
+		@Override
+		public void sources(final Set<Source> sources) {
+
+			sources.add(this);
+		}
+	}
+
+	public static class Const implements Expression {
+
+		private final double value;
+
+		public Const(final double value) {
+
+			this.value = value;
+		}
+
+		@Override
+		public Kernel kernel(final Context context) {
+
+			return i -> value;
+		}
+
+		@Override
+		public void halo(final int[] halo) {}
+
+		@Override
+		public void sources(final Set<Source> sources) {}
+	}
+
+	public static abstract class Binary implements Expression {
+
+		protected final Expression a, b;
+
+		public Binary(final Expression a, final Expression b) {
+
+			this.a = a;
+			this.b = b;
+		}
+
+		@Override
+		public void halo(final int[] halo) {
+
+			a.halo(halo);
+			b.halo(halo);
+		}
+
+		@Override
+		public List<Expression> operands() {
+
+			return Arrays.asList(a, b);
+		}
+
+		@Override
+		public void sources(final Set<Source> sources) {
+
+			a.sources(sources);
+			b.sources(sources);
+		}
+	}
+
+	public static class Add extends Binary {
+
+		public Add(final Expression a, final Expression b) {
+
+			super(a, b);
+		}
+
+		@Override
+		public Kernel kernel(final Context context) {
+
+			/* both operands are buffered, read their arrays directly */
+			final double[] x = context.buffer(a), y = context.buffer(b);
+			if (x != null && y != null)
+				return i -> x[i] + y[i];
+			final Kernel ka = context.kernel(a), kb = context.kernel(b);
+			return i -> ka.eval(i) + kb.eval(i);
+		}
+	}
+
+	public static class Sub extends Binary {
+
+		public Sub(final Expression a, final Expression b) {
+
+			super(a, b);
+		}
+
+		@Override
+		public Kernel kernel(final Context context) {
+
+			/* both operands are buffered, read their arrays directly */
+			final double[] x = context.buffer(a), y = context.buffer(b);
+			if (x != null && y != null)
+				return i -> x[i] - y[i];
+			final Kernel ka = context.kernel(a), kb = context.kernel(b);
+			return i -> ka.eval(i) - kb.eval(i);
+		}
+	}
+
+	public static class Mul extends Binary {
+
+		public Mul(final Expression a, final Expression b) {
+
+			super(a, b);
+		}
+
+		@Override
+		public Kernel kernel(final Context context) {
+
+			/* both operands are buffered, read their arrays directly */
+			final double[] x = context.buffer(a), y = context.buffer(b);
+			if (x != null && y != null)
+				return i -> x[i] * y[i];
+			final Kernel ka = context.kernel(a), kb = context.kernel(b);
+			return i -> ka.eval(i) * kb.eval(i);
+		}
+	}
+
+	public static class Div extends Binary {
+
+		public Div(final Expression a, final Expression b) {
+
+			super(a, b);
+		}
+
+		@Override
+		public Kernel kernel(final Context context) {
+
+			/* both operands are buffered, read their arrays directly */
+			final double[] x = context.buffer(a), y = context.buffer(b);
+			if (x != null && y != null)
+				return i -> x[i] / y[i];
+			final Kernel ka = context.kernel(a), kb = context.kernel(b);
+			return i -> ka.eval(i) / kb.eval(i);
+		}
+	}
+
+	/**
+	 * Like {@link Functions#centerGradient(RandomAccessible, int)}.
+	 */
+	public static class CenterGradient implements Expression {
+
+		private final Expression e;
+		private final int d;
+
+		public CenterGradient(final Expression e, final int d) {
+
+			this.e = e;
+			this.d = d;
+		}
+
+		@Override
+		public Kernel kernel(final Context context) {
+
+			final int s = context.stride(d);
+			final double[] x = context.buffer(e);
+			if (x != null)
+				return i -> 0.5 * (x[i + s] - x[i - s]);
+			final Kernel k = context.kernel(e);
+			return i -> 0.5 * (k.eval(i + s) - k.eval(i - s));
+		}
+
+		@Override
+		public void halo(final int[] halo) {
+
+			final int[] haloE = new int[halo.length];
+			e.halo(haloE);
+			++haloE[d];
+			for (int f = 0; f < halo.length; ++f)
+				halo[f] = Math.max(halo[f], haloE[f]);
+		}
+
+		@Override
+		public void sources(final Set<Source> sources) {
+
+			e.sources(sources);
+		}
+
+		/**
+		 * e is read at two positions per voxel.
+		 */
+		@Override
+		public List<Expression> operands() {
+
+			return Arrays.asList(e, e);
+		}
+	}
+
+	public static Source source(final RandomAccessible<? extends RealType<?>> source) {
+
+		return new Source(source);
+	}
+
+	public static Const constant(final double value) {
+
+		return new Const(value);
+	}
+
+	public static CenterGradient centerGradient(final Expression e, final int d) {
+
+		return new CenterGradient(e, d);
+	}
+
+	public default Add add(final Expression b) {
+
+		return new Add(this, b);
+	}
+
+	public default Sub sub(final Expression b) {
+
+		return new Sub(this, b);
+	}
+
+	public default Mul mul(final Expression b) {
+
+		return new Mul(this, b);
+	}
+
+	public default Div div(final Expression b) {
+
+		return new Div(this, b);
+	}
+
+	/**
+	 * Count the uses of e and all its subexpressions, and list them in an
+	 * order in which every subexpression comes after its operands.
+	 *
+	 * @param e
+	 * @param uses
+	 * @param order
+	 */
+	public static void countUses(
+			final Expression e,
+			final IdentityHashMap<Expression, Integer> uses,
+			final List<Expression> order) {
+
+		final Integer count = uses.get(e);
+		if (count != null) {
+			uses.put(e, count + 1);
+			return;
+		}
+		uses.put(e, 1);
+		for (final Expression operand : e.operands())
+			countUses(operand, uses, order);
+		order.add(e);
+	}
+
+	/**
+	 * Compile this expression into a cell generator.  Per block, every
+	 * source is copied once with the halo of the expression, every shared
+	 * subexpression is evaluated once into a buffer where its users need it,
+	 * and the compiled expression is evaluated in one loop over the block.
+	 *
+	 * @param <T>
+	 * @return
+	 */
+	public default <T extends RealType<T>> Consumer<RandomAccessibleInterval<T>> compile() {
+
+		final Set<Source> sources = Collections.newSetFromMap(new IdentityHashMap<>());
+		sources(sources);
+
+		/* subexpressions that are used more than once, operands first */
+		final IdentityHashMap<Expression, Integer> uses = new IdentityHashMap<>();
+		final ArrayList<Expression> order = new ArrayList<>();
+		countUses(this, uses, order);
+		final ArrayList<Expression> shared = new ArrayList<>();
+		for (final Expression e : order)
+			if (uses.get(e) > 1 && !(e instanceof Source) && !(e instanceof Const))
+				shared.add(e);
+
+		return cell -> {
+
+			final int n = cell.numDimensions();
+			final int[] halo = new int[n];
+			halo(halo);
+
+			/* padded block */
+			final long[] min = new long[n];
+			final long[] max = new long[n];
+			final int[] dimensions = new int[n];
+			final int[] lineMin = new int[n];
+			final int[] lineMax = new int[n];
+			final int[] strides = new int[n];
+			for (int d = 0; d < n; ++d) {
+				min[d] = cell.min(d) - halo[d];
+				max[d] = cell.max(d) + halo[d];
+				dimensions[d] = (int)(max[d] - min[d] + 1);
+				lineMin[d] = halo[d];
+				lineMax[d] = halo[d] + (int)cell.dimension(d) - 1;
+				strides[d] = Lines.stride(dimensions, d);
+			}
+			final FinalInterval padded = new FinalInterval(min, max);
+
+			/* copy each source once */
+			final IdentityHashMap<Expression, double[]> buffers = new IdentityHashMap<>();
+			for (final Source source : sources) {
+				final double[] data = new double[Lines.size(dimensions)];
+				final Cursor<? extends RealType<?>> cursor = Views.flatIterable(Views.interval(source.getSource(), padded)).cursor();
+				for (int i = 0; i < data.length; ++i)
+					data[i] = cursor.next().getRealDouble();
+				buffers.put(source, data);
+			}
+			final Context context = new Context(buffers, strides);
+
+			/*
+			 * evaluate each shared subexpression once, wherever its own halo
+			 * fits into the padded block, which includes all positions where
+			 * its users read it
+			 */
+			for (final Expression e : shared) {
+				final int[] haloE = new int[n];
+				e.halo(haloE);
+				final int[] eMin = new int[n];
+				final int[] eMax = new int[n];
+				for (int d = 0; d < n; ++d) {
+					eMin[d] = haloE[d];
+					eMax[d] = dimensions[d] - 1 - haloE[d];
+				}
+				final Kernel k = e.kernel(context);
+				final double[] data = new double[Lines.size(dimensions)];
+				Lines.forEachLine(dimensions, 0, eMin, eMax, offset -> {
+					for (int i = offset + eMin[0], end = offset + eMax[0]; i <= end; ++i)
+						data[i] = k.eval(i);
+				});
+				buffers.put(e, data);
+			}
+
+			final Kernel kernel = kernel(context);
+
+			/* fused loop */
+			final Cursor<T> out = Views.flatIterable(cell).cursor();
+			final int width = (int)cell.dimension(0);
+			final int x0 = halo[0];
+			Lines.forEachLine(dimensions, 0, lineMin, lineMax, offset -> {
+				final int start = offset + x0;
+				for (int x = 0; x < width; ++x)
+					out.next().setReal(kernel.eval(start + x));
+			});
+		};
+	}
+
+	/**
+	 * Create a lazy generated image of this expression.
+	 *
+	 * @param <T>
+	 * @param targetInterval
+	 * @param blockSize
+	 * @param type
+	 * @param accessFlags
+	 * @return
+	 */
+	public default <T extends NativeType<T> & RealType<T>> CachedCellImg<T, ?> generate(
+			final Interval targetInterval,
+			final int[] blockSize,
+			final T type,
+			final Set<AccessFlags> accessFlags) {
+
+		return Lazy.generate(
+				targetInterval,
+				blockSize,
+				type,
+				accessFlags,
+				compile());
+	}
+}
@@ -2,10 +2,13 @@ package org.janelia.saalfeldlab.i2k2020;
 
 import java.io.IOException;
 import java.util.concurrent.Callable;
+import java.util.function.Consumer;
 
 import org.janelia.saalfeldlab.i2k2020.ops.CLIJ2FilterOp;
 import org.janelia.saalfeldlab.i2k2020.ops.CLLCN;
 import org.janelia.saalfeldlab.i2k2020.ops.ImageJStackOp;
+import org.janelia.saalfeldlab.i2k2020.ops.StripOp;
+import org.janelia.saalfeldlab.i2k2020.util.HaloReport;
 import org.janelia.saalfeldlab.n5.N5Reader;
 import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
 import org.janelia.saalfeldlab.n5.universe.N5Factory;
@@ -51,6 +54,20 @@ public class LazyTutorial1 implements Callable<Void> {
 			description = "scale index, e.g. 4")
 	private int scaleIndex = 0;
 
+	@Option(
+			names = {"--stripheight"},
+			required = false,
+			description = "height of the x-y strips that are processed at once by the slice filters, 0 processes each cell with its own padding, e.g. 256")
+	private int stripHeight = 256;
+
+	@Option(
+			names = {"--halo-report"},
+			required = false,
+			description = "print voxels read including halo vs. voxels produced and time per stage on exit")
+	private boolean printHaloReport = false;
+
+	private HaloReport haloReport = null;
+
 	/**
 	 * Start the tool.  We ignore the exit code returned by
 	 * {@link CommandLine#execute(String...)} but this can be useful in other
@@ -80,8 +97,53 @@ public class LazyTutorial1 implements Callable<Void> {
 		return null;
 	}
 
+	/**
+	 * Serve cells from full-width strips if stripHeight &gt; 0 so that the
+	 * padding of large radius slice filters is processed only once per strip.
+	 *
+	 * @param <T>
+	 * @param img
+	 * @param op
+	 * @return
+	 */
+	private <T extends NativeType<T>> Consumer<RandomAccessibleInterval<T>> strips(
+			final RandomAccessibleInterval<T> img,
+			final Consumer<RandomAccessibleInterval<T>> op) {
+
+		if (stripHeight > 0)
+			return new StripOp<>(img, stripHeight, img.randomAccess().get().createVariable(), op);
+		else
+			return op;
+	}
+
+	/**
+	 * Record halo overhead and time of a stage if requested.
+	 *
+	 * @param <T>
+	 * @param name
+	 * @param op
+	 * @param halo
+	 * @return
+	 */
+	private <T> Consumer<RandomAccessibleInterval<T>> stage(
+			final String name,
+			final Consumer<RandomAccessibleInterval<T>> op,
+			final long... halo) {
+
+		if (haloReport != null)
+			return haloReport.stage(name, halo).wrap(op);
+		else
+			return op;
+	}
+
 	private final <T extends NativeType<T> & IntegerType<T>> void run() throws IOException {
 
+		if (printHaloReport) {
+			final HaloReport report = new HaloReport();
+			haloReport = report;
+			Runtime.getRuntime().addShutdownHook(new Thread(() -> report.print(System.out)));
+		}
+
 		final SharedQueue queue = new SharedQueue(Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
 
 		final N5Reader n5 = new N5Factory().openReader(n5Url);
@@ -109,7 +171,7 @@ public class LazyTutorial1 implements Callable<Void> {
 		final RandomAccessibleInterval<T> clahed = cacheFactory.create(
 				img.dimensionsAsLongArray(),				//< the size of the result
 				img.randomAccess().get().createVariable(),	//< the type that is used to generate the result pixels
-				clahe::accept);								//< the consumer that creates each cell
+				strips(img, stage("CLAHE", clahe, blockRadius, blockRadius))::accept);	//< the consumer that creates each cell
 
 		/* Use the ImageJ plugin local contrast normalization in an op to produce contrast enhanced cells */
 		final ImageJStackOp<T> lcn =
@@ -124,7 +186,7 @@ public class LazyTutorial1 implements Callable<Void> {
 		final RandomAccessibleInterval<T> lcned = cacheFactory.create(
 				img.dimensionsAsLongArray(),				//< the size of the result
 				img.randomAccess().get().createVariable(),	//< the type that is used to generate the result pixels
-				lcn::accept);								//< the consumer that creates each cell
+				strips(img, stage("LCN", lcn, blockRadius, blockRadius))::accept);	//< the consumer that creates each cell
 
 
 		/* Use the new ImageJ plugin contrast limited local contrast normalization in an op to produce contrast enhanced cells */
@@ -140,7 +202,7 @@ public class LazyTutorial1 implements Callable<Void> {
 		final RandomAccessibleInterval<T> cllcned = cacheFactory.create(
 				img.dimensionsAsLongArray(),				//< the size of the result
 				img.randomAccess().get().createVariable(),	//< the type that is used to generate the result pixels
-				cllcn::accept);								//< the consumer that creates each cell
+				strips(img, stage("CLLCN", cllcn, blockRadius, blockRadius))::accept);	//< the consumer that creates each cell
 
 
 		/* A bit more fun: Invert and float convert the image, then use the CLIJ2 DoG filter */
@@ -153,7 +215,7 @@ public class LazyTutorial1 implements Callable<Void> {
 		final RandomAccessibleInterval<FloatType> clij2filtered = cacheFactory.create(
 				img.dimensionsAsLongArray(),				//< the size of the result
 				new FloatType(),							//< the type that is used to generate the result pixels
-				clij2Filter::accept,
+				stage("CLIJ2 DoG", clij2Filter, clij2Filter.getPadding())::accept,
 				new ReadOnlyCachedCellImgOptions()
 					.cellDimensions(64, 64, 64));						//< the consumer that creates each cell
 
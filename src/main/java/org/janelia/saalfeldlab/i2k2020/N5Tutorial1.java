@@ -3,9 +3,10 @@ package org.janelia.saalfeldlab.i2k2020;
 import java.io.IOException;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
+import org.janelia.saalfeldlab.i2k2020.util.IOScheduler;
+import org.janelia.saalfeldlab.i2k2020.util.Resume;
+import org.janelia.saalfeldlab.i2k2020.util.Shards;
 import org.janelia.saalfeldlab.i2k2020.util.Timer;
 import org.janelia.saalfeldlab.n5.DatasetAttributes;
 import org.janelia.saalfeldlab.n5.N5Reader;
@@ -40,6 +41,25 @@ public class N5Tutorial1 implements Callable<Void> {
 			description = "N5 URL, e.g. '/home/saalfeld/tmp/jrc_hela-2'")
 	private String n5OutUrl = null;
 
+	@Option(
+			names = {"--resume"},
+			required = false,
+			description = "only save blocks that are missing or cannot be decoded, e.g. after a previous run died halfway through")
+	private boolean resume = false;
+
+	@Option(
+			names = {"--ioconcurrency"},
+			required = false,
+			description = "maximum number of concurrent block reads and writes, encoding and compression use one thread per core, e.g. 64")
+	private int ioConcurrency = 64;
+
+	@Option(
+			names = {"--shardsize"},
+			required = false,
+			split = ",",
+			description = "pack this many blocks into one shard file in the N5 filesystem copy, e.g. 8,8,8")
+	private int[] shardSize = null;
+
 	/**
 	 * Start the tool.  We ignore the exit code returned by
 	 * {@link CommandLine#execute(String...)} but this can be useful in other
@@ -90,7 +110,7 @@ public class N5Tutorial1 implements Callable<Void> {
 		final DatasetAttributes attributes = n5.getDatasetAttributes(n5Dataset);
 
 		/* working in parallel helps */
-		final ExecutorService exec = Executors.newFixedThreadPool(10);
+		final IOScheduler scheduler = new IOScheduler(ioConcurrency);
 
 		/* create an N5 factory with reasonable defaults */
 		final N5Factory n5Factory = new N5Factory()
@@ -102,7 +122,7 @@ public class N5Tutorial1 implements Callable<Void> {
 		timer.start();
 		try (final N5Writer zarrOut = n5Factory.openZarrWriter(n5OutUrl + ".zarr")) {
 //			N5Utils.save(img, zarrOut, n5Dataset, attributes.getBlockSize(), attributes.getCompression());
-			N5Utils.save(img, zarrOut, n5Dataset, attributes.getBlockSize(), attributes.getCompression(), exec);
+			scheduler.save(img, zarrOut, n5Dataset, attributes.getBlockSize(), attributes.getCompression(), resume);
 		}
 		System.out.println("...done in " + timer.stop() + "ms.");
 
@@ -111,7 +131,11 @@ public class N5Tutorial1 implements Callable<Void> {
 		timer.start();
 		try (final N5Writer n5Out = n5Factory.openFSWriter(n5OutUrl + ".n5")) {
 //			N5Utils.save(img, n5Out, n5Dataset, attributes.getBlockSize(), attributes.getCompression());
-			N5Utils.save(img, n5Out, n5Dataset, attributes.getBlockSize(), attributes.getCompression(), exec);
+			/* one task per shard, each holds a shard in memory, so use one per core */
+			if (shardSize != null)
+				Shards.save(img, n5Out, n5Dataset, attributes.getBlockSize(), shardSize, attributes.getCompression(), resume, scheduler.cpu());
+			else
+				scheduler.save(img, n5Out, n5Dataset, attributes.getBlockSize(), attributes.getCompression(), resume);
 		}
 		System.out.println("...done in " + timer.stop() + "ms.");
 
@@ -119,11 +143,14 @@ public class N5Tutorial1 implements Callable<Void> {
 		System.out.println("Copy to HDF5...");
 		timer.start();
 		try (final N5Writer hdf5Out = n5Factory.openHDF5Writer(n5OutUrl + ".hdf5")) {
-//			N5Utils.save(img, hdf5Out, n5Dataset, attributes.getBlockSize(), attributes.getCompression());
-			N5Utils.save(img, hdf5Out, n5Dataset, attributes.getBlockSize(), attributes.getCompression(), exec);
+			/* the HDF5 writer is not thread-safe, write from one thread */
+			if (resume)
+				Resume.save(img, hdf5Out, n5Dataset, attributes.getBlockSize(), attributes.getCompression());
+			else
+				N5Utils.save(img, hdf5Out, n5Dataset, attributes.getBlockSize(), attributes.getCompression());
 		}
 		System.out.println("...done in " + timer.stop() + "ms.");
 
-		exec.shutdown();
+		scheduler.close();
 	}
 }
@@ -3,9 +3,10 @@ package org.janelia.saalfeldlab.i2k2020;
 import java.io.IOException;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
+import org.janelia.saalfeldlab.i2k2020.util.BlockCopy;
+import org.janelia.saalfeldlab.i2k2020.util.IOScheduler;
+import org.janelia.saalfeldlab.i2k2020.util.Resume;
 import org.janelia.saalfeldlab.i2k2020.util.Timer;
 import org.janelia.saalfeldlab.n5.DatasetAttributes;
 import org.janelia.saalfeldlab.n5.N5Reader;
@@ -42,6 +43,24 @@ public class N5Tutorial2 implements Callable<Void> {
 			description = "N5 URL, e.g. '/home/saalfeld/tmp/jrc_hela-2'")
 	private String n5OutUrl = null;
 
+	@Option(
+			names = {"--resume"},
+			required = false,
+			description = "only save blocks that are missing or cannot be decoded, e.g. after a previous run died halfway through")
+	private boolean resume = false;
+
+	@Option(
+			names = {"--ioconcurrency"},
+			required = false,
+			description = "maximum number of concurrent block reads and writes, encoding and compression use one thread per core, e.g. 64")
+	private int ioConcurrency = 64;
+
+	@Option(
+			names = {"--blockcopy"},
+			required = false,
+			description = "copy compressed blocks byte for byte into N5 and Zarr where the crop is aligned with the block grid, decode and encode only the other blocks")
+	private boolean blockCopy = false;
+
 	@Option(
 			names = {"-c", "--cropmin"},
 			required = true,
@@ -107,8 +126,7 @@ public class N5Tutorial2 implements Callable<Void> {
 		final DatasetAttributes attributes = n5.getDatasetAttributes(n5Dataset);
 
 		/* working in parallel helps */
-//		final ExecutorService exec = Executors.newCachedThreadPool();
-		final ExecutorService exec = Executors.newFixedThreadPool(10);
+		final IOScheduler scheduler = new IOScheduler(ioConcurrency);
 
 		/* create an N5 factory with reasonable defaults */
 		final N5Factory n5Factory = new N5Factory()
@@ -120,7 +138,10 @@ public class N5Tutorial2 implements Callable<Void> {
 		timer.start();
 		final N5Writer n5Out = n5Factory.openFSWriter(n5OutUrl + ".n5");
 //		N5Utils.save(crop, n5Out, n5Dataset, attributes.getBlockSize(), attributes.getCompression());
-		N5Utils.save(crop, n5Out, n5Dataset, attributes.getBlockSize(), attributes.getCompression(), exec);
+		if (blockCopy)
+			copyBlocks(n5, n5Out, scheduler);
+		else
+			scheduler.save(crop, n5Out, n5Dataset, attributes.getBlockSize(), attributes.getCompression(), resume);
 		System.out.println("...done in " + timer.stop() + "ms.");
 		n5Out.setAttribute(n5Dataset, "offset", cropMin);
 
@@ -129,7 +150,10 @@ public class N5Tutorial2 implements Callable<Void> {
 		timer.start();
 		final N5Writer zarrOut = n5Factory.openZarrWriter(n5OutUrl + ".zarr");
 //		N5Utils.save(crop, zarrOut, n5Dataset, attributes.getBlockSize(), attributes.getCompression());
-		N5Utils.save(crop, zarrOut, n5Dataset, attributes.getBlockSize(), attributes.getCompression(), exec);
+		if (blockCopy)
+			copyBlocks(n5, zarrOut, scheduler);
+		else
+			scheduler.save(crop, zarrOut, n5Dataset, attributes.getBlockSize(), attributes.getCompression(), resume);
 		System.out.println("...done in " + timer.stop() + "ms.");
 		zarrOut.setAttribute(n5Dataset, "offset", cropMin);
 
@@ -137,11 +161,34 @@ public class N5Tutorial2 implements Callable<Void> {
 		System.out.println("Copy to HDF5...");
 		timer.start();
 		final N5Writer hdf5Out = n5Factory.openHDF5Writer(n5OutUrl + ".hdf5");
-		N5Utils.save(crop, hdf5Out, n5Dataset, attributes.getBlockSize(), attributes.getCompression());
-//		N5Utils.save(crop, hdf5Out, n5Dataset, attributes.getBlockSize(), attributes.getCompression(), exec);
+		if (resume)
+			Resume.save(crop, hdf5Out, n5Dataset, attributes.getBlockSize(), attributes.getCompression());
+		else
+			N5Utils.save(crop, hdf5Out, n5Dataset, attributes.getBlockSize(), attributes.getCompression());
+//		N5Utils.save(crop, hdf5Out, n5Dataset, attributes.getBlockSize(), attributes.getCompression(), scheduler.io());
 		System.out.println("...done in " + timer.stop() + "ms.");
 		hdf5Out.setAttribute(n5Dataset, "offset", cropMin);
 
-		exec.shutdown();
+		scheduler.close();
+	}
+
+	/**
+	 * Copy the crop with {@link BlockCopy} and report how many blocks were
+	 * copied and how many were decoded and encoded.
+	 *
+	 * @param n5
+	 * @param out
+	 * @param scheduler
+	 * @throws IOException
+	 * @throws InterruptedException
+	 * @throws ExecutionException
+	 */
+	private void copyBlocks(
+			final N5Reader n5,
+			final N5Writer out,
+			final IOScheduler scheduler) throws IOException, InterruptedException, ExecutionException {
+
+		final long[] counts = BlockCopy.copy(n5, n5Dataset, cropMin, cropMax, out, n5Dataset, resume, scheduler.io());
+		System.out.println(counts[0] + " blocks copied, " + counts[1] + " blocks decoded and encoded.");
 	}
 }
@@ -2,16 +2,24 @@ package org.janelia.saalfeldlab.i2k2020;
 
 import java.io.IOException;
 import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
+import org.janelia.saalfeldlab.i2k2020.util.DiskCache;
+import org.janelia.saalfeldlab.i2k2020.util.Prefetcher;
 import org.janelia.saalfeldlab.n5.N5Reader;
 import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
 import org.janelia.saalfeldlab.n5.universe.N5Factory;
 
 import bdv.cache.SharedQueue;
 import bdv.util.BdvFunctions;
+import bdv.util.BdvStackSource;
 import bdv.util.volatiles.VolatileViews;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.Volatile;
+import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.img.basictypeaccess.AccessFlags;
 import net.imglib2.type.NativeType;
 import picocli.CommandLine;
 import picocli.CommandLine.Command;
@@ -32,6 +40,30 @@ public class N5Tutorial3 implements Callable<Void> {
 			description = "N5 dataset, e.g. '/em/fibsem-uint16/s4'")
 	private String n5Dataset = null;
 
+	@Option(
+			names = {"--diskcache"},
+			required = false,
+			description = "directory of a persistent cache of encoded blocks on the local disk, e.g. '/home/saalfeld/.cache/n5'")
+	private String diskCacheDirectory = null;
+
+	@Option(
+			names = {"--diskcachesize"},
+			required = false,
+			description = "size limit of the disk cache in MB, e.g. 4096")
+	private long diskCacheSize = 4096;
+
+	@Option(
+			names = {"--prefetch"},
+			required = false,
+			description = "prefetch cells ahead of navigation and at adjacent planes, one of off, metrics (count hits and misses only), on")
+	private String prefetch = "off";
+
+	@Option(
+			names = {"--lookahead"},
+			required = false,
+			description = "how far ahead of the current motion to prefetch in ms, e.g. 500")
+	private long lookAhead = 500;
+
 	/**
 	 * Start the tool.  We ignore the exit code returned by
 	 * {@link CommandLine#execute(String...)} but this can be useful in other
@@ -74,11 +106,33 @@ public class N5Tutorial3 implements Callable<Void> {
 
 		/* open dataset */
 //		final RandomAccessibleInterval<T> img = N5Utils.open(n5, n5Dataset);
-		final RandomAccessibleInterval<T> img = N5Utils.openVolatile(n5, n5Dataset);
+		final RandomAccessibleInterval<T> img;
+		if (diskCacheDirectory == null)
+			img = N5Utils.openVolatile(n5, n5Dataset);
+		else {
+			/* read through a persistent cache on the local disk */
+			final DiskCache diskCache = DiskCache.open(diskCacheDirectory, diskCacheSize << 20);
+			img = DiskCache.open(diskCache, n5, n5Url, n5Dataset, AccessFlags.setOf(AccessFlags.VOLATILE));
+		}
 
 		/* show with BDV */
 //		BdvFunctions.show(img, n5Dataset);
 		final SharedQueue queue = new SharedQueue(Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
-		BdvFunctions.show(VolatileViews.wrapAsVolatile(img, queue), n5Dataset);
+		final BdvStackSource<?> bdv = BdvFunctions.show(VolatileViews.wrapAsVolatile(img, queue), n5Dataset);
+
+		/* prefetch into the cache that backs the volatile view */
+		if (!prefetch.equals("off")) {
+			final Prefetcher prefetcher = new Prefetcher((CachedCellImg<T, ?>)img);
+			prefetcher.setLookAhead(lookAhead);
+			prefetcher.setEnabled(prefetch.equals("on"));
+			prefetcher.install(bdv.getBdvHandle().getViewerPanel());
+
+			final ScheduledExecutorService monitor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+				final Thread thread = new Thread(runnable);
+				thread.setDaemon(true);
+				return thread;
+			});
+			monitor.scheduleAtFixedRate(() -> System.out.println(prefetcher.status()), 10, 10, TimeUnit.SECONDS);
+		}
 	}
 }
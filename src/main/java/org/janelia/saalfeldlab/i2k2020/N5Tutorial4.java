@@ -15,10 +15,12 @@ import bdv.util.BdvStackSource;
 import bdv.util.volatiles.VolatileViews;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.converter.Converters;
+import net.imglib2.img.basictypeaccess.AccessFlags;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.ARGBType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.view.Views;
 import picocli.CommandLine;
 import picocli.CommandLine.Command;
 import picocli.CommandLine.Option;
@@ -125,5 +127,22 @@ public class N5Tutorial4 implements Callable<Void> {
 				BdvOptions.options().addTo(bdv));
 		bdv.setColor(new ARGBType(0xff0000ff));
 		bdv.setDisplayRange(-2000, 2000);
+
+		/* squared gradient magnitude as one expression, compiled into a fused loop per block */
+		final Expression source = Expression.source(Views.extendMirrorSingle(imgDoubles));
+		final Expression dx = Expression.centerGradient(source, 0);
+		final Expression dy = Expression.centerGradient(source, 1);
+		final Expression dz = Expression.centerGradient(source, 2);
+		final RandomAccessibleInterval<DoubleType> magnitude = dx.mul(dx).add(dy.mul(dy)).add(dz.mul(dz)).generate(
+				imgDoubles,
+				new int[] {16, 16, 16},
+				new DoubleType(),
+				AccessFlags.setOf(AccessFlags.VOLATILE));
+
+		bdv = BdvFunctions.show(
+				VolatileViews.wrapAsVolatile(magnitude),
+				n5Dataset + " squared gradient magnitude",
+				BdvOptions.options().addTo(bdv));
+		bdv.setDisplayRange(0, 4000000);
 	}
 }
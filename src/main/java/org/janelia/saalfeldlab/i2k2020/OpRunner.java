@@ -0,0 +1,692 @@
+package org.janelia.saalfeldlab.i2k2020;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+import org.apache.spark.SparkConf;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.janelia.saalfeldlab.i2k2020.ops.CLLCN;
+import org.janelia.saalfeldlab.i2k2020.ops.CLLCNOp;
+import org.janelia.saalfeldlab.i2k2020.ops.GradientCenter;
+import org.janelia.saalfeldlab.i2k2020.ops.ImageJStackOp;
+import org.janelia.saalfeldlab.i2k2020.ops.SimpleGaussRA;
+import org.janelia.saalfeldlab.i2k2020.util.BlockPipeline;
+import org.janelia.saalfeldlab.i2k2020.util.Grid;
+import org.janelia.saalfeldlab.i2k2020.util.Lazy;
+import org.janelia.saalfeldlab.i2k2020.util.MappedBlocks;
+import org.janelia.saalfeldlab.i2k2020.util.Resume;
+import org.janelia.saalfeldlab.n5.Bzip2Compression;
+import org.janelia.saalfeldlab.n5.Compression;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.Lz4Compression;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.RawCompression;
+import org.janelia.saalfeldlab.n5.XzCompression;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+import org.janelia.saalfeldlab.n5.universe.N5Factory;
+
+import ij.ImagePlus;
+import mpicbg.ij.clahe.Flat;
+import mpicbg.ij.plugin.NormalizeLocalContrast;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.converter.Converters;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.basictypeaccess.AccessFlags;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+import picocli.CommandLine;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
+
+/**
+ * Run an op from the ops package blockwise over an N5 dataset and save the
+ * result into another N5 dataset, either with a local thread pool or with
+ * Spark, or locally as a {@link BlockPipeline}.  Reports per-block timing,
+ * throughput, and the encoded bytes written for N5 containers on the file
+ * system.
+ *
+ * Ops and their parameters (-p name=value, defaults in brackets):
+ * <ul>
+ * <li>cllcn: {@link CLLCNOp}, blockRadius [63], meanFactor [3], limit [10],
+ *     gamma [0.5], center [true], stretch [true], keepMinMax [true],
+ *     min [0], max [65535]</li>
+ * <li>cllcn-ij: {@link CLLCN} in an {@link ImageJStackOp}, same parameters</li>
+ * <li>clahe: ImageJ CLAHE in an {@link ImageJStackOp}, blockRadius [63],
+ *     bins [256], slope [2.5], min [0], max [65535]</li>
+ * <li>lcn: ImageJ local contrast normalization in an {@link ImageJStackOp},
+ *     blockRadius [63], meanFactor [3], center [true], stretch [true],
+ *     min [0], max [65535]</li>
+ * <li>gauss: {@link SimpleGaussRA}, sigma [2] or sigmas [e.g. 2,2,1],
+ *     float output</li>
+ * <li>gradient: {@link GradientCenter}, axis [0], sigma [1], float output</li>
+ * </ul>
+ *
+ * @author Stephan Saalfeld
+ */
+@Command(name = "i2k2020-op-runner")
+public class OpRunner implements Callable<Void> {
+
+	@Option(
+			names = {"-i", "--n5url"},
+			required = true,
+			description = "N5 URL, e.g. 'https://janelia-cosem.s3.amazonaws.com/jrc_hela-2/jrc_hela-2.n5'")
+	private String n5Url = null;
+
+	@Option(
+			names = {"-d", "--n5dataset"},
+			required = true,
+			description = "N5 dataset, e.g. '/em/fibsem-uint16/s4'")
+	private String n5Dataset = null;
+
+	@Option(
+			names = {"-o", "--n5outurl"},
+			required = true,
+			description = "N5 output URL, e.g. '/home/saalfeld/tmp/jrc_hela-2.n5'")
+	private String n5OutUrl = null;
+
+	@Option(
+			names = {"-e", "--n5outdataset"},
+			required = true,
+			description = "N5 output dataset, e.g. '/em/fibsem-uint16/s4-cllcn'")
+	private String n5OutDataset = null;
+
+	@Option(
+			names = {"--op"},
+			required = true,
+			description = "op, one of cllcn, cllcn-ij, clahe, lcn, gauss, gradient")
+	private String op = null;
+
+	@Option(
+			names = {"-p", "--param"},
+			required = false,
+			description = "op parameter, e.g. -p blockRadius=63 -p gamma=0.5")
+	private Map<String, String> params = new HashMap<>();
+
+	@Option(
+			names = {"-c", "--compression"},
+			required = false,
+			description = "output compression, one of raw, gzip, bzip2, lz4, xz, e.g. gzip")
+	private String compression = "gzip";
+
+	@Option(
+			names = {"-b", "--blocksize"},
+			required = false,
+			split = ",",
+			description = "output block size, defaults to the input block size, e.g. 128,128,64")
+	private int[] blockSize = null;
+
+	@Option(
+			names = {"--threads"},
+			required = false,
+			description = "number of threads for local processing, defaults to the number of cores")
+	private int numThreads = Runtime.getRuntime().availableProcessors();
+
+	@Option(
+			names = {"--pipeline"},
+			required = false,
+			description = "run locally as a pipeline of read, compute, encode, and write stages with bounded queues in between")
+	private boolean pipeline = false;
+
+	@Option(
+			names = {"--iothreads"},
+			required = false,
+			description = "number of threads for each of the read and write stages of --pipeline, e.g. 8")
+	private int ioThreads = 8;
+
+	@Option(
+			names = {"--queuesize"},
+			required = false,
+			description = "number of blocks that can wait between two stages of --pipeline, e.g. 16")
+	private int queueSize = 16;
+
+	@Option(
+			names = {"--mmap"},
+			required = false,
+			description = "memory-map the input blocks if the input is an uncompressed N5 dataset on the local file system")
+	private boolean mmap = false;
+
+	@Option(
+			names = {"--spark"},
+			required = false,
+			description = "run with Spark instead of a local thread pool")
+	private boolean spark = false;
+
+	/**
+	 * Start the tool.  We ignore the exit code returned by
+	 * {@link CommandLine#execute(String...)} but this can be useful in other
+	 * applications.
+	 *
+	 * @param args
+	 */
+	public static void main(final String... args) {
+
+		new CommandLine(new OpRunner()).execute(args);
+	}
+
+	/**
+	 * Everything a task needs to process blocks.
+	 */
+	private static class Job implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		String n5Url, n5Dataset, n5OutUrl, n5OutDataset, op;
+		HashMap<String, String> params;
+		int[] blockSize;
+		boolean mmap;
+	}
+
+	/**
+	 * Per-block time in ns, number of voxels processed, and encoded bytes
+	 * written, 0 if the block was empty and skipped, -1 if unknown.
+	 */
+	private static class BlockStats implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		final long nanos, voxels, bytes;
+
+		BlockStats(final long nanos, final long voxels, final long bytes) {
+
+			this.nanos = nanos;
+			this.voxels = voxels;
+			this.bytes = bytes;
+		}
+	}
+
+	/**
+	 * Returns the encoded size of a block that was just written, or -1 if
+	 * the container is not on the file system.
+	 *
+	 * @param n5
+	 * @param dataset
+	 * @param gridPosition
+	 * @return
+	 * @throws IOException
+	 */
+	private static long encodedSize(
+			final N5Writer n5,
+			final String dataset,
+			final long... gridPosition) throws IOException {
+
+		if (n5 instanceof N5FSWriter)
+			return Files.size(Resume.blockPath(n5, dataset, gridPosition));
+		else
+			return -1;
+	}
+
+	private static long numVoxels(final long[][] gridBlock) {
+
+		long voxels = 1;
+		for (final long s : gridBlock[1])
+			voxels *= s;
+		return voxels;
+	}
+
+	private static String param(final Map<String, String> params, final String key, final String defaultValue) {
+
+		return params.getOrDefault(key, defaultValue);
+	}
+
+	private static int param(final Map<String, String> params, final String key, final int defaultValue) {
+
+		return params.containsKey(key) ? Integer.parseInt(params.get(key)) : defaultValue;
+	}
+
+	private static float param(final Map<String, String> params, final String key, final float defaultValue) {
+
+		return params.containsKey(key) ? Float.parseFloat(params.get(key)) : defaultValue;
+	}
+
+	private static boolean param(final Map<String, String> params, final String key, final boolean defaultValue) {
+
+		return params.containsKey(key) ? Boolean.parseBoolean(params.get(key)) : defaultValue;
+	}
+
+	public static Compression compression(final String name) {
+
+		switch (name.toLowerCase()) {
+		case "raw":
+			return new RawCompression();
+		case "gzip":
+			return new GzipCompression();
+		case "bzip2":
+			return new Bzip2Compression();
+		case "lz4":
+			return new Lz4Compression();
+		case "xz":
+			return new XzCompression();
+		default:
+			throw new IllegalArgumentException("Unknown compression " + name);
+		}
+	}
+
+	/**
+	 * Returns img extended the way an op extends its input.
+	 *
+	 * @param <T>
+	 * @param op
+	 * @param img
+	 * @return
+	 */
+	public static <T extends NativeType<T> & RealType<T>> RandomAccessible<T> extended(
+			final String op,
+			final RandomAccessibleInterval<T> img) {
+
+		return op.equals("gradient") ? Views.extendBorder(img) : Views.extendMirrorSingle(img);
+	}
+
+	/**
+	 * Returns the output type of an op for an input type.
+	 *
+	 * @param <T>
+	 * @param op
+	 * @param type
+	 * @return
+	 */
+	public static <T extends NativeType<T> & RealType<T>> NativeType<?> outputType(
+			final String op,
+			final T type) {
+
+		return op.equals("gauss") || op.equals("gradient") ? new FloatType() : type.createVariable();
+	}
+
+	/**
+	 * Returns how far an op reads beyond the output block in each dimension.
+	 *
+	 * @param op
+	 * @param params
+	 * @param n number of dimensions
+	 * @return
+	 */
+	public static long[] halo(
+			final String op,
+			final Map<String, String> params,
+			final int n) {
+
+		final long[] halo = new long[n];
+		switch (op) {
+		case "gauss":
+			final double[] sigmas = sigmas(params, n);
+			for (int d = 0; d < n; ++d)
+				halo[d] = (int)(3 * sigmas[d] + 0.5) + 1;
+			break;
+		case "gradient":
+			halo[param(params, "axis", 0)] = 1;
+			break;
+		default:
+			halo[0] = halo[1] = param(params, "blockRadius", 63) + 1;
+		}
+		return halo;
+	}
+
+	private static double[] sigmas(final Map<String, String> params, final int n) {
+
+		final double[] sigmas;
+		if (params.containsKey("sigmas"))
+			sigmas = Arrays.stream(param(params, "sigmas", "").split(",")).mapToDouble(Double::parseDouble).toArray();
+		else {
+			sigmas = new double[n];
+			Arrays.fill(sigmas, param(params, "sigma", 2f));
+		}
+		return sigmas;
+	}
+
+	/**
+	 * Create an op that writes into output intervals in the coordinates of
+	 * img.  img is extended like in {@link #extended(String, RandomAccessibleInterval)}.
+	 *
+	 * @param <T>
+	 * @param op
+	 * @param params
+	 * @param img
+	 * @return
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public static <T extends NativeType<T> & RealType<T>> Consumer<RandomAccessibleInterval<?>> createOp(
+			final String op,
+			final Map<String, String> params,
+			final RandomAccessibleInterval<T> img) {
+
+		final int n = img.numDimensions();
+
+		final int blockRadius = param(params, "blockRadius", 63);
+		final float meanFactor = param(params, "meanFactor", 3f);
+		final boolean center = param(params, "center", true);
+		final boolean stretch = param(params, "stretch", true);
+		final float min = param(params, "min", 0f);
+		final float max = param(params, "max", 65535f);
+
+		final Consumer<RandomAccessibleInterval<?>> cellOp;
+
+		switch (op) {
+		case "cllcn": {
+			final float limit = param(params, "limit", 10f);
+			final float gamma = param(params, "gamma", 0.5f);
+			final boolean keepMinMax = param(params, "keepMinMax", true);
+			cellOp = (Consumer)new CLLCNOp<>(
+					extended(op, img),
+					new int[] {blockRadius, blockRadius},
+					meanFactor,
+					limit,
+					gamma,
+					center,
+					stretch,
+					keepMinMax,
+					min,
+					max);
+			break;
+		}
+		case "cllcn-ij": {
+			final float limit = param(params, "limit", 10f);
+			final float gamma = param(params, "gamma", 0.5f);
+			final boolean keepMinMax = param(params, "keepMinMax", true);
+			cellOp = (Consumer)new ImageJStackOp<>(
+					extended(op, img),
+					fp -> new CLLCN(fp).run(blockRadius, blockRadius, meanFactor, limit, gamma, center, stretch, keepMinMax),
+					blockRadius,
+					min,
+					max);
+			break;
+		}
+		case "clahe": {
+			final int bins = param(params, "bins", 256);
+			final float slope = param(params, "slope", 2.5f);
+			cellOp = (Consumer)new ImageJStackOp<>(
+					extended(op, img),
+					fp -> Flat.getFastInstance().run(new ImagePlus("", fp), blockRadius, bins, slope, null, false),
+					blockRadius,
+					min,
+					max);
+			break;
+		}
+		case "lcn": {
+			cellOp = (Consumer)new ImageJStackOp<>(
+					extended(op, img),
+					fp -> NormalizeLocalContrast.run(fp, blockRadius, blockRadius, meanFactor, center, stretch),
+					blockRadius,
+					min,
+					max);
+			break;
+		}
+		case "gauss": {
+			final SimpleGaussRA<FloatType> gauss = new SimpleGaussRA<>(sigmas(params, n));
+			gauss.setInput(Converters.convert(extended(op, img), (a, b) -> b.setReal(a.getRealFloat()), new FloatType()));
+			cellOp = (Consumer)gauss;
+			break;
+		}
+		case "gradient": {
+			cellOp = (Consumer)new GradientCenter<>(
+					Converters.convert(extended(op, img), (a, b) -> b.setReal(a.getRealFloat()), new FloatType()),
+					param(params, "axis", 0),
+					param(params, "sigma", 1f));
+			break;
+		}
+		default:
+			throw new IllegalArgumentException("Unknown op " + op);
+		}
+
+		return cellOp;
+	}
+
+	/**
+	 * Create a lazy generated output image for an op.
+	 *
+	 * @param <T>
+	 * @param op
+	 * @param params
+	 * @param img
+	 * @param cellSize
+	 * @return
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public static <T extends NativeType<T> & RealType<T>> RandomAccessibleInterval<?> process(
+			final String op,
+			final Map<String, String> params,
+			final RandomAccessibleInterval<T> img,
+			final int[] cellSize) {
+
+		return Lazy.generate(
+				img,
+				cellSize,
+				(NativeType)outputType(op, Util.getTypeFromInterval(img)),
+				AccessFlags.setOf(),
+				(Consumer)createOp(op, params, img));
+	}
+
+	/**
+	 * Process and save a list of grid blocks, returns per-block statistics.
+	 *
+	 * @param job
+	 * @param gridBlocks
+	 * @return
+	 * @throws IOException
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private static <T extends NativeType<T> & RealType<T>> List<BlockStats> processBlocks(
+			final Job job,
+			final List<long[][]> gridBlocks,
+			final ExecutorService exec) throws Exception {
+
+		final N5Reader n5 = new N5Factory().openReader(job.n5Url);
+		final RandomAccessibleInterval<T> img = job.mmap ?
+				MappedBlocks.open(n5, job.n5Dataset) :
+				N5Utils.open(n5, job.n5Dataset);
+		final N5Writer n5Writer = new N5Factory().openWriter(job.n5OutUrl);
+
+		final RandomAccessibleInterval output = process(job.op, job.params, img, job.blockSize);
+		final NativeType zero = (NativeType)((NativeType)Util.getTypeFromInterval(output)).createVariable();
+		final DatasetAttributes attributes = n5Writer.getDatasetAttributes(job.n5OutDataset);
+
+		final ArrayList<Callable<BlockStats>> tasks = new ArrayList<>();
+		for (final long[][] gridBlock : gridBlocks) {
+			tasks.add(() -> {
+				final long t = System.nanoTime();
+				final RandomAccessibleInterval<NativeType> block = Views.offsetInterval(output, gridBlock[0], gridBlock[1]);
+
+				/* like N5Utils.saveNonEmptyBlock but tells whether the block was written */
+				boolean empty = true;
+				for (final NativeType v : Views.iterable(block)) {
+					if (!v.valueEquals(zero)) {
+						empty = false;
+						break;
+					}
+				}
+				if (empty)
+					return new BlockStats(System.nanoTime() - t, numVoxels(gridBlock), 0);
+
+				N5Utils.saveBlock(block, n5Writer, job.n5OutDataset, attributes, gridBlock[2]);
+				final long nanos = System.nanoTime() - t;
+				return new BlockStats(nanos, numVoxels(gridBlock), encodedSize(n5Writer, job.n5OutDataset, gridBlock[2]));
+			});
+		}
+
+		final ArrayList<BlockStats> stats = new ArrayList<>();
+		if (exec == null) {
+			for (final Callable<BlockStats> task : tasks)
+				stats.add(task.call());
+		} else {
+			for (final Future<BlockStats> future : exec.invokeAll(tasks))
+				stats.add(future.get());
+		}
+		return stats;
+	}
+
+	/**
+	 * Process and save grid blocks with a {@link BlockPipeline}.  The read
+	 * stage copies each block with the halo of the op into memory, so the
+	 * compute stage does not wait for I/O.
+	 */
+	@SuppressWarnings("unchecked")
+	private static <T extends NativeType<T> & RealType<T>, O extends NativeType<O>> List<BlockStats> pipelineBlocks(
+			final Job job,
+			final List<long[][]> grid,
+			final int computeThreads,
+			final int ioThreads,
+			final int queueSize) throws Exception {
+
+		final N5Reader n5 = new N5Factory().openReader(job.n5Url);
+		final RandomAccessibleInterval<T> img = job.mmap ?
+				MappedBlocks.open(n5, job.n5Dataset) :
+				N5Utils.open(n5, job.n5Dataset);
+		final N5Writer n5Writer = new N5Factory().openWriter(job.n5OutUrl);
+
+		final int n = img.numDimensions();
+		final T type = Util.getTypeFromInterval(img).createVariable();
+		final ArrayImgFactory<T> inputFactory = new ArrayImgFactory<>(type);
+		final ArrayImgFactory<O> outputFactory = new ArrayImgFactory<>((O)outputType(job.op, type));
+		final RandomAccessible<T> source = extended(job.op, img);
+		final long[] halo = halo(job.op, job.params, n);
+
+		final BlockPipeline<RandomAccessibleInterval<T>, O> blockPipeline = new BlockPipeline<>(
+				gridBlock -> {
+					final long[] min = new long[n];
+					final long[] size = new long[n];
+					for (int d = 0; d < n; ++d) {
+						min[d] = gridBlock[0][d] - halo[d];
+						size[d] = gridBlock[1][d] + 2 * halo[d];
+					}
+					final ArrayImg<T, ?> input = inputFactory.create(size);
+					org.janelia.saalfeldlab.i2k2020.util.Util.copy(Views.offset(source, min), input);
+					return Views.translate(input, min);
+				},
+				(gridBlock, input) -> {
+					final RandomAccessibleInterval<O> output = Views.translate(outputFactory.create(gridBlock[1]), gridBlock[0]);
+					createOp(job.op, job.params, input).accept(output);
+					return output;
+				},
+				n5Writer,
+				job.n5OutDataset,
+				ioThreads,
+				computeThreads,
+				Math.max(1, computeThreads / 2),
+				ioThreads,
+				queueSize);
+
+		final List<BlockStats> stats = Collections.synchronizedList(new ArrayList<>());
+		blockPipeline.setOnWritten((gridBlock, nanos) -> {
+			try {
+				stats.add(new BlockStats(nanos, numVoxels(gridBlock), encodedSize(n5Writer, job.n5OutDataset, gridBlock[2])));
+			} catch (final IOException e) {
+				throw new RuntimeException(e);
+			}
+		});
+		blockPipeline.run(grid, System.out, 10000);
+		System.out.println(blockPipeline.status());
+
+		return stats;
+	}
+
+	private static void report(final List<BlockStats> stats, final int bytesPerVoxel, final double wallMs) {
+
+		if (stats.isEmpty()) {
+			System.out.println("No blocks processed.");
+			return;
+		}
+
+		final long[] nanos = stats.stream().mapToLong(s -> s.nanos).sorted().toArray();
+		final long voxels = stats.stream().mapToLong(s -> s.voxels).sum();
+		final long uncompressedBytes = voxels * bytesPerVoxel;
+		final long blocksWritten = stats.stream().filter(s -> s.bytes != 0).count();
+		final boolean bytesKnown = stats.stream().allMatch(s -> s.bytes >= 0);
+		final long bytes = stats.stream().mapToLong(s -> Math.max(0, s.bytes)).sum();
+		final double toMs = 1.0 / 1000000;
+
+		System.out.println(String.format("blocks:           %d (%d written, %d empty)", nanos.length, blocksWritten, nanos.length - blocksWritten));
+		System.out.println(String.format(
+				"ms per block:     min %.1f, median %.1f, mean %.1f, max %.1f",
+				nanos[0] * toMs,
+				nanos[nanos.length / 2] * toMs,
+				Arrays.stream(nanos).average().getAsDouble() * toMs,
+				nanos[nanos.length - 1] * toMs));
+		System.out.println(String.format("wall time:        %.1fs", wallMs / 1000));
+		System.out.println(String.format("throughput:       %.1f Mvoxels/s", voxels / wallMs / 1000));
+		System.out.println(String.format("processed:        %d uncompressed bytes (%.1f MB/s)", uncompressedBytes, uncompressedBytes / wallMs / 1000));
+		if (bytesKnown)
+			System.out.println(String.format("bytes written:    %d encoded (%.1f MB/s)", bytes, bytes / wallMs / 1000));
+		else
+			System.out.println("bytes written:    unknown, the output container is not on the file system");
+	}
+
+	@Override
+	public Void call() throws Exception {
+
+		final N5Reader n5 = new N5Factory().openReader(n5Url);
+		final DatasetAttributes attributes = n5.getDatasetAttributes(n5Dataset);
+		if (blockSize == null)
+			blockSize = attributes.getBlockSize();
+
+		/* create the output with the output type of the op */
+		final RandomAccessibleInterval<?> output = process(op, params, N5Utils.open(n5, n5Dataset), blockSize);
+		final NativeType<?> outputType = (NativeType<?>)Util.getTypeFromInterval(output);
+		final N5Writer n5Writer = new N5Factory().openWriter(n5OutUrl);
+		n5Writer.createDataset(
+				n5OutDataset,
+				attributes.getDimensions(),
+				blockSize,
+				N5Utils.dataType((NativeType)outputType),
+				compression(compression));
+		final int bytesPerVoxel = N5Utils.dataType((NativeType)outputType).createDataBlock(new int[] {1}, new long[] {0}).toByteBuffer().capacity();
+
+		final List<long[][]> grid = Grid.create(attributes.getDimensions(), blockSize);
+
+		final Job job = new Job();
+		job.n5Url = n5Url;
+		job.n5Dataset = n5Dataset;
+		job.n5OutUrl = n5OutUrl;
+		job.n5OutDataset = n5OutDataset;
+		job.op = op;
+		job.params = new HashMap<>(params);
+		job.blockSize = blockSize;
+		job.mmap = mmap;
+
+		final long t = System.nanoTime();
+		final List<BlockStats> stats;
+		if (spark) {
+			final SparkConf conf = new SparkConf().setAppName(this.getClass().getName());
+			try (final JavaSparkContext sc = new JavaSparkContext(conf)) {
+				stats = sc.parallelize(grid).mapPartitions(
+						gridBlocks -> {
+							final ArrayList<long[][]> blocks = new ArrayList<>();
+							gridBlocks.forEachRemaining(blocks::add);
+							return blocks.isEmpty() ?
+									Collections.<BlockStats>emptyIterator() :
+									processBlocks(job, blocks, null).iterator();
+						}).collect();
+			}
+		} else if (pipeline) {
+			stats = pipelineBlocks(job, grid, numThreads, ioThreads, queueSize);
+		} else {
+			final ExecutorService exec = Executors.newFixedThreadPool(numThreads);
+			try {
+				stats = processBlocks(job, grid, exec);
+			} finally {
+				exec.shutdown();
+			}
+		}
+
+		report(stats, bytesPerVoxel, (System.nanoTime() - t) / 1000000.0);
+
+		return null;
+	}
+}
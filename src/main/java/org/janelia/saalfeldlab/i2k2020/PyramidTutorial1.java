@@ -0,0 +1,212 @@
+package org.janelia.saalfeldlab.i2k2020;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.spark.SparkConf;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.janelia.saalfeldlab.i2k2020.util.Pyramid;
+import org.janelia.saalfeldlab.i2k2020.util.Timer;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+import org.janelia.saalfeldlab.n5.universe.N5Factory;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import picocli.CommandLine;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
+
+@Command(name = "i2k2020-tutorial-pyramid-1")
+public class PyramidTutorial1 implements Callable<Void> {
+
+	@Option(
+			names = {"-i", "--n5url"},
+			required = true,
+			description = "N5 URL, e.g. 'https://janelia-cosem.s3.amazonaws.com/jrc_hela-2/jrc_hela-2.n5'")
+	private String n5Url = null;
+
+	@Option(
+			names = {"-d", "--n5dataset"},
+			required = true,
+			description = "N5 dataset of the full resolution level, e.g. '/em/fibsem-uint16/s0'")
+	private String n5Dataset = null;
+
+	@Option(
+			names = {"-o", "--n5outurl"},
+			required = true,
+			description = "N5 output URL, e.g. '/home/saalfeld/tmp/jrc_hela-2.n5'")
+	private String n5OutUrl = null;
+
+	@Option(
+			names = {"-e", "--n5outgroup"},
+			required = true,
+			description = "N5 output group for the levels s1..sN, e.g. '/em/fibsem-uint16'")
+	private String n5OutGroup = null;
+
+	@Option(
+			names = {"-n", "--numlevels"},
+			required = true,
+			description = "number of downsampled levels, e.g. 6")
+	private int numLevels = 0;
+
+	@Option(
+			names = {"-f", "--factors"},
+			required = false,
+			split = ",",
+			description = "downsampling factors per level, e.g. 2,2,2")
+	private int[] factors = null;
+
+	@Option(
+			names = {"--levelsperpass"},
+			required = false,
+			description = "number of levels generated from one read of their input, e.g. 3")
+	private int levelsPerPass = 3;
+
+	@Option(
+			names = {"--labels"},
+			required = false,
+			description = "downsample with the most frequent value instead of the mean")
+	private boolean labels = false;
+
+	@Option(
+			names = {"--spark"},
+			required = false,
+			description = "run with Spark instead of a local thread pool")
+	private boolean spark = false;
+
+	/**
+	 * Start the tool.  We ignore the exit code returned by
+	 * {@link CommandLine#execute(String...)} but this can be useful in other
+	 * applications.
+	 *
+	 * @param args
+	 */
+	public static void main(final String... args) {
+
+		new CommandLine(new PyramidTutorial1()).execute(args);
+	}
+
+	/**
+	 * The real implementation.  We use {@link Callable Callable<Void>} instead
+	 * of {@link Runnable} because {@link Runnable#run()} cannot throw
+	 * {@link Exception Exceptions}.
+	 *
+	 * @throws Exception
+	 */
+	@Override
+	public Void call() throws Exception {
+
+		final Timer timer = new Timer();
+
+		/* get some data about the input */
+		final N5Reader n5 = new N5Factory().openReader(n5Url);
+		final DatasetAttributes attributes = n5.getDatasetAttributes(n5Dataset);
+
+		if (factors == null) {
+			factors = new int[attributes.getNumDimensions()];
+			Arrays.fill(factors, 2);
+		}
+
+		/* create the output datasets */
+		final N5Writer n5Writer = new N5Factory().openWriter(n5OutUrl);
+		Pyramid.createDatasets(n5Writer, n5OutGroup, attributes, factors, numLevels);
+
+		timer.start();
+		if (spark)
+			runSpark(n5Url, n5Dataset, n5OutUrl, n5OutGroup, numLevels, levelsPerPass, factors, labels);
+		else
+			runLocal(n5, n5Dataset, n5Writer, n5OutGroup, numLevels, levelsPerPass, factors, labels);
+		System.out.println("...done in " + timer.stop() + "ms.");
+
+		return null;
+	}
+
+	private static final <T extends NativeType<T> & RealType<T>> void runLocal(
+			final N5Reader n5,
+			final String n5Dataset,
+			final N5Writer n5Writer,
+			final String n5OutGroup,
+			final int numLevels,
+			final int levelsPerPass,
+			final int[] factors,
+			final boolean labels) throws IOException, InterruptedException, ExecutionException {
+
+		final RandomAccessibleInterval<T> s0 = N5Utils.open(n5, n5Dataset);
+
+		final ExecutorService exec = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		Pyramid.build(s0, n5Writer, n5OutGroup, factors, numLevels, levelsPerPass, labels, exec);
+		exec.shutdown();
+	}
+
+	private static final <T extends NativeType<T> & RealType<T>> void runSpark(
+			final String n5Url,
+			final String n5Dataset,
+			final String n5OutUrl,
+			final String n5OutGroup,
+			final int numLevels,
+			final int levelsPerPass,
+			final int[] factors,
+			final boolean labels) throws IOException {
+
+		/* create Spark context */
+		final SparkConf conf = new SparkConf().setAppName(PyramidTutorial1.class.getName());
+		final JavaSparkContext sc = new JavaSparkContext(conf);
+
+		final N5Writer n5Writer = new N5Factory().openWriter(n5OutUrl);
+
+		Pyramid.checkPasses(
+				new N5Factory().openReader(n5Url).getDatasetAttributes(n5Dataset).getDimensions(),
+				n5Writer,
+				n5OutGroup,
+				factors,
+				numLevels,
+				levelsPerPass);
+
+		/* the first pass reads s0, later passes read the last level of the previous pass */
+		String inputUrl = n5Url;
+		String inputDataset = n5Dataset;
+		for (int firstLevel = 1; firstLevel <= numLevels; firstLevel += levelsPerPass) {
+
+			final int levels = Math.min(levelsPerPass, numLevels - firstLevel + 1);
+			final int passFirstLevel = firstLevel;
+			final String passInputUrl = inputUrl;
+			final String passInputDataset = inputDataset;
+
+			final long[] dimensions = new N5Factory().openReader(passInputUrl).getDatasetAttributes(passInputDataset).getDimensions();
+			final int[] blockSize = n5Writer.getDatasetAttributes(n5OutGroup + "/s" + firstLevel).getBlockSize();
+			final List<long[][]> regions = Pyramid.passGrid(dimensions, blockSize, factors, levels);
+
+			sc.parallelize(regions).foreachPartition(partitionRegions -> {
+
+				final N5Reader n5 = new N5Factory().openReader(passInputUrl);
+				final RandomAccessibleInterval<T> input = N5Utils.open(n5, passInputDataset);
+				final N5Writer n5PartitionWriter = new N5Factory().openWriter(n5OutUrl);
+
+				while (partitionRegions.hasNext())
+					Pyramid.processRegion(
+							input,
+							n5PartitionWriter,
+							n5OutGroup,
+							passFirstLevel,
+							levels,
+							factors,
+							labels,
+							partitionRegions.next());
+			});
+
+			inputUrl = n5OutUrl;
+			inputDataset = n5OutGroup + "/s" + (firstLevel + levels - 1);
+		}
+
+		sc.close();
+	}
+}
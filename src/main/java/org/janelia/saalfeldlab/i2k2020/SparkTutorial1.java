@@ -1,22 +1,31 @@
 package org.janelia.saalfeldlab.i2k2020;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.apache.spark.SparkConf;
 import org.apache.spark.api.java.JavaRDD;
 import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.util.LongAccumulator;
 import org.janelia.saalfeldlab.i2k2020.ops.CLLCN;
 import org.janelia.saalfeldlab.i2k2020.ops.ImageJStackOp;
+import org.janelia.saalfeldlab.i2k2020.ops.StripOp;
+import org.janelia.saalfeldlab.i2k2020.util.BlockCache;
+import org.janelia.saalfeldlab.i2k2020.util.BlockExecutor;
 import org.janelia.saalfeldlab.i2k2020.util.Grid;
 import org.janelia.saalfeldlab.i2k2020.util.Lazy;
+import org.janelia.saalfeldlab.i2k2020.util.Resume;
+import org.janelia.saalfeldlab.i2k2020.util.Timer;
 import org.janelia.saalfeldlab.n5.DatasetAttributes;
 import org.janelia.saalfeldlab.n5.N5Reader;
 import org.janelia.saalfeldlab.n5.N5Writer;
 import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
 import org.janelia.saalfeldlab.n5.universe.N5Factory;
 
+import net.imglib2.Interval;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.basictypeaccess.AccessFlags;
 import net.imglib2.type.NativeType;
@@ -61,6 +70,48 @@ public class SparkTutorial1 implements Callable<Void> {
 			description = "scale index, e.g. 4")
 	private int scaleIndex = 0;
 
+	@Option(
+			names = {"--stripheight"},
+			required = false,
+			description = "height of the x-y strips of each partition that are processed at once by the slice filter, 0 processes each cell with its own padding, e.g. 256")
+	private int stripHeight = 256;
+
+	@Option(
+			names = {"--inputcachesize"},
+			required = false,
+			description = "size of the input block cache that is shared by all tasks of an executor in MB, 0 uses 1/4 of the heap, e.g. 4096")
+	private long inputCacheSize = 0;
+
+	@Option(
+			names = {"--resume"},
+			required = false,
+			description = "only process blocks that are missing in the output or cannot be decoded, e.g. after a previous run died halfway through")
+	private boolean resume = false;
+
+	@Option(
+			names = {"--local"},
+			required = false,
+			description = "run on a local work-stealing pool instead of Spark")
+	private boolean local = false;
+
+	@Option(
+			names = {"--threads"},
+			required = false,
+			description = "number of threads for --local, defaults to the number of cores")
+	private int numThreads = Runtime.getRuntime().availableProcessors();
+
+	@Option(
+			names = {"--maxpartitions"},
+			required = false,
+			description = "maximum number of partitions whose op and input cache exist at the same time with --local, defaults to enough partitions for twice the number of threads blocks")
+	private int maxPartitions = 0;
+
+	@Option(
+			names = {"--blocksperpartition"},
+			required = false,
+			description = "number of consecutive blocks that share input cache and op with --local, e.g. 16")
+	private int blocksPerPartition = 16;
+
 	/**
 	 * Start the tool.  We ignore the exit code returned by
 	 * {@link CommandLine#execute(String...)} but this can be useful in other
@@ -83,35 +134,126 @@ public class SparkTutorial1 implements Callable<Void> {
 	@Override
 	public Void call() throws Exception {
 
-		/* create Spark context */
-		final SparkConf conf = new SparkConf().setAppName(this.getClass().getName());
-		final JavaSparkContext sc = new JavaSparkContext(conf);
-
 		/* get some data about the input */
 		final N5Reader n5 = new N5Factory().openReader(n5Url);
 		final DatasetAttributes attributes = n5.getDatasetAttributes(n5Dataset);
 
 		/* create the output */
 		final N5Writer n5Writer = new N5Factory().openWriter(n5OutUrl);
-		n5Writer.createDataset(n5OutDataset, attributes);
+		if (!(resume && n5Writer.datasetExists(n5OutDataset)))
+			n5Writer.createDataset(n5OutDataset, attributes);
 
 		/* create the grid for parallelization */
 		final List<long[][]> grid = Grid.create(attributes.getDimensions(), attributes.getBlockSize());
 
+		final double scale = 1.0 / Math.pow(2, scaleIndex);
+		final int blockRadius = (int)Math.round(1023 * scale);
+
+		if (local) {
+			runLocal(n5Url, n5Dataset, n5Writer, n5OutDataset, blockRadius, stripHeight, inputCacheSize << 20, resume, grid);
+			return null;
+		}
+
+		/* create Spark context */
+		final SparkConf conf = new SparkConf().setAppName(this.getClass().getName());
+		final JavaSparkContext sc = new JavaSparkContext(conf);
+
 		/* Sparkify it */
 		final JavaRDD<long[][]> rddGrid = sc.parallelize(grid);
 
-		final double scale = 1.0 / Math.pow(2, scaleIndex);
-		final int blockRadius = (int)Math.round(1023 * scale);
+		/* count input block cache hits and misses over all executors */
+		final LongAccumulator inputCacheHits = sc.sc().longAccumulator("input block cache hits");
+		final LongAccumulator inputCacheMisses = sc.sc().longAccumulator("input block cache misses");
 
 		/* delegate to a method that can be parameterized */
-		run(sc, n5Url, n5Dataset, n5OutUrl, n5OutDataset, blockRadius, rddGrid);
+		run(sc, n5Url, n5Dataset, n5OutUrl, n5OutDataset, blockRadius, stripHeight, inputCacheSize << 20, inputCacheHits, inputCacheMisses, resume, rddGrid);
+
+		System.out.println(
+				String.format(
+						"input block cache hits: %d, misses: %d",
+						inputCacheHits.value(),
+						inputCacheMisses.value()));
 
 		sc.close();
 
 		return null;
 	}
 
+	/**
+	 * Create the lazy CLLCN output for all blocks in interval, reading input
+	 * through the {@link BlockCache}.  This is done once per partition.
+	 */
+	private static final <T extends NativeType<T> & RealType<T>> RandomAccessibleInterval<T> cllcn(
+			final String n5Url,
+			final String n5Dataset,
+			final int blockRadius,
+			final int stripHeight,
+			final LongAdder hits,
+			final LongAdder misses,
+			final Interval interval) throws IOException {
+
+		final N5Reader n5 = new N5Factory().openReader(n5Url);
+		final RandomAccessibleInterval<T> img = BlockCache.open(n5, n5Url, n5Dataset, hits, misses);
+
+		/* Use the new ImageJ plugin contrast limited local contrast normalization */
+		final ImageJStackOp<T> cllcn =
+				new ImageJStackOp<>(
+						Views.extendZero(img),
+						(fp) -> new CLLCN(fp).run(blockRadius, blockRadius, 3f, 10, 0.5f, true, true, true),
+						blockRadius,
+						0,
+						65535);
+
+		/* process strips of the interval once for all cells in it */
+		return Lazy.generate(
+				img,
+				new int[] {256, 256, 32},
+				img.randomAccess().get().createVariable(),
+				AccessFlags.setOf(AccessFlags.VOLATILE),
+				stripHeight > 0 ? new StripOp<>(interval, stripHeight, img.randomAccess().get().createVariable(), cllcn) : cllcn);
+	}
+
+	/**
+	 * Run the same job on a local {@link BlockExecutor} instead of Spark.
+	 */
+	private final <T extends NativeType<T> & RealType<T>> void runLocal(
+			final String n5Url,
+			final String n5Dataset,
+			final N5Writer n5Writer,
+			final String n5OutDataset,
+			final int blockRadius,
+			final int stripHeight,
+			final long inputCacheBytes,
+			final boolean resume,
+			final List<long[][]> grid) throws Exception {
+
+		if (inputCacheBytes > 0)
+			BlockCache.getInstance().setMaxBytes(inputCacheBytes);
+		final LongAdder hits = new LongAdder();
+		final LongAdder misses = new LongAdder();
+
+		final BlockExecutor exec = new BlockExecutor(
+				numThreads,
+				maxPartitions > 0 ? maxPartitions : Math.max(2, (2 * numThreads + blocksPerPartition - 1) / blocksPerPartition),
+				blocksPerPartition);
+		final Timer timer = new Timer();
+		timer.start();
+		exec.<T>run(
+				grid,
+				interval -> cllcn(n5Url, n5Dataset, blockRadius, stripHeight, hits, misses, interval),
+				n5Writer,
+				n5OutDataset,
+				resume);
+		System.out.println(exec.getBlocksSaved() + " blocks saved in " + timer.stop() + "ms.");
+		exec.shutdown();
+
+		System.out.println(
+				String.format(
+						"input block cache hits: %d, misses: %d",
+						hits.sum(),
+						misses.sum()));
+	}
+
 	private static final <T extends NativeType<T> & RealType<T>> void run(
 			final JavaSparkContext sc,
 			final String n5Url,
@@ -119,33 +261,55 @@ public class SparkTutorial1 implements Callable<Void> {
 			final String n5OutUrl,
 			final String n5OutDataset,
 			final int blockRadius,
+			final int stripHeight,
+			final long inputCacheBytes,
+			final LongAccumulator inputCacheHits,
+			final LongAccumulator inputCacheMisses,
+			final boolean resume,
 			final JavaRDD<long[][]> rddGrid) throws IOException {
 
-		rddGrid.foreach(gridBlock -> {
-
-			final N5Reader n5 = new N5Factory().openReader(n5Url);
-			final RandomAccessibleInterval<T> img = N5Utils.open(n5, n5Dataset);
-
-			/* Use the new ImageJ plugin contrast limited local contrast normalization */
-			final ImageJStackOp<T> cllcn =
-					new ImageJStackOp<>(
-							Views.extendZero(img),
-							(fp) -> new CLLCN(fp).run(blockRadius, blockRadius, 3f, 10, 0.5f, true, true, true),
-							blockRadius,
-							0,
-							65535);
-			final RandomAccessibleInterval<T> cllcned = Lazy.generate(
-					img,
-					new int[] {256, 256, 32},
-					img.randomAccess().get().createVariable(),
-					AccessFlags.setOf(AccessFlags.VOLATILE),
-					cllcn);
-
-			/* crop the block of interest */
-			final IntervalView<T> block = Views.offsetInterval(cllcned, gridBlock[0], gridBlock[1]);
+		/*
+		 * Process all blocks of a partition with the same reader, input
+		 * cache, op, lazy output cache, and writer, so that neighboring blocks
+		 * share cached input and cells that are computed once.
+		 */
+		rddGrid.foreachPartition(gridBlocks -> {
 
 			final N5Writer n5Writer = new N5Factory().openWriter(n5OutUrl);
-			N5Utils.saveNonEmptyBlock(block, n5Writer, n5OutDataset, gridBlock[2], Util.getTypeFromInterval(img).createVariable());
+			final DatasetAttributes outAttributes = n5Writer.getDatasetAttributes(n5OutDataset);
+
+			/* when resuming, only process blocks that are not complete */
+			final ArrayList<long[][]> blocks = new ArrayList<>();
+			gridBlocks.forEachRemaining(gridBlock -> {
+				if (!(resume && Resume.isComplete(n5Writer, n5OutDataset, outAttributes, gridBlock[2])))
+					blocks.add(gridBlock);
+			});
+			if (blocks.isEmpty())
+				return;
+
+			/* read input through the executor-wide block cache */
+			if (inputCacheBytes > 0)
+				BlockCache.getInstance().setMaxBytes(inputCacheBytes);
+			final LongAdder hits = new LongAdder();
+			final LongAdder misses = new LongAdder();
+
+			/* process partition-wide strips once for all cells of the partition */
+			final RandomAccessibleInterval<T> cllcned = cllcn(n5Url, n5Dataset, blockRadius, stripHeight, hits, misses, Grid.boundingBox(blocks));
+
+			for (final long[][] gridBlock : blocks) {
+
+				/* crop the block of interest */
+				final IntervalView<T> block = Views.offsetInterval(cllcned, gridBlock[0], gridBlock[1]);
+
+				/* resumable jobs write empty blocks too, existing blocks mark completion */
+				if (resume)
+					Resume.saveBlock(block, n5Writer, n5OutDataset, outAttributes, gridBlock[2]);
+				else
+					N5Utils.saveNonEmptyBlock(block, n5Writer, n5OutDataset, gridBlock[2], Util.getTypeFromInterval(cllcned).createVariable());
+			}
+
+			inputCacheHits.add(hits.sum());
+			inputCacheMisses.add(misses.sum());
 		});
 	}
 }
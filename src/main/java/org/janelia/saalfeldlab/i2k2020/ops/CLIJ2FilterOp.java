@@ -33,6 +33,7 @@ public class CLIJ2FilterOp<T extends RealType<T> & NativeType<T>, S extends Real
 	protected BiConsumer<ClearCLBuffer, ClearCLBuffer> filter = (a, b) -> {};
 
 	public CLIJ2 getClij2() { return clij2; }
+	public long[] getPadding() { return padding.clone(); }
 	public void setFilter(final BiConsumer<ClearCLBuffer, ClearCLBuffer> filter) {
 
 		this.filter = filter;
@@ -1,18 +1,194 @@
 package org.janelia.saalfeldlab.i2k2020.ops;
 
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
 import ij.process.FloatProcessor;
-import mpicbg.ij.integral.BlockStatistics;
 
 /**
  * Contrast Limited Local Contrast Normalization
  *
+ * Block sums and sums of squares are looked up from integral images like
+ * in {@link mpicbg.ij.integral.BlockStatistics}.  If an
+ * {@link ExecutorService} is passed, building the integral images and the
+ * per pixel pass are split into row (and column) stripes that are processed
+ * in parallel.  Do not pass the executor that calls this filter (e.g. the
+ * cell loader threads of a cache) unless it is a
+ * {@link java.util.concurrent.ForkJoinPool}, it may run out of threads.
+ *
+ * In low memory mode, no integral images are built.  Instead,
+ * {@link #run(int, int, float, float, float, boolean, boolean, boolean)}
+ * slides the window over the image with running column and row sums, the
+ * memory used is proportional to the width of the image times the block
+ * radius.  Sums are exact long sums if the image contains only integers
+ * that are small enough, otherwise compensated double sums.  Low memory
+ * mode runs on the calling thread.
+ *
  * @author Stephan Saalfeld
  */
-public class CLLCN extends BlockStatistics {
+public class CLLCN {
+
+	@FunctionalInterface
+	protected static interface Stripe {
+
+		public void run(final int from, final int to);
+	}
+
+	final protected FloatProcessor fp;
+
+	/**
+	 * Integral images of size (width + 1) * (height + 1) with a leading row
+	 * and column of zeros, null in low memory mode.
+	 */
+	final protected double[] sums, sumsOfSquares;
+
+	final protected ExecutorService exec;
+	final protected int numStripes;
+
+	protected CLLCN(
+			final FloatProcessor fp,
+			final ExecutorService exec,
+			final int numStripes,
+			final boolean lowMemory) {
+
+		this.fp = fp;
+		this.exec = exec;
+		this.numStripes = exec == null ? 1 : Math.max(1, numStripes);
+
+		if (lowMemory) {
+			sums = null;
+			sumsOfSquares = null;
+		} else {
+			final int w1 = fp.getWidth() + 1;
+			final int h1 = fp.getHeight() + 1;
+			sums = new double[w1 * h1];
+			sumsOfSquares = new double[w1 * h1];
+
+			integrate();
+		}
+	}
+
+	/**
+	 * Create a parallel CLLCN.
+	 *
+	 * @param fp
+	 * @param exec if null, everything runs on the calling thread
+	 * @param numStripes number of row and column stripes to split the work into
+	 */
+	public CLLCN(
+			final FloatProcessor fp,
+			final ExecutorService exec,
+			final int numStripes) {
+
+		this(fp, exec, numStripes, false);
+	}
 
 	public CLLCN(final FloatProcessor fp) {
 
-		super(fp);
+		this(fp, null, 1, false);
+	}
+
+	/**
+	 * Create a CLLCN that, in low memory mode, does not build integral
+	 * images.  Then, only
+	 * {@link #run(int, int, float, float, float, boolean, boolean, boolean)}
+	 * can be used.
+	 *
+	 * @param fp
+	 * @param lowMemory
+	 */
+	public CLLCN(final FloatProcessor fp, final boolean lowMemory) {
+
+		this(fp, null, 1, lowMemory);
+	}
+
+	/**
+	 * Split [0, size) into stripes and run them on {@link #exec} or on the
+	 * calling thread if there is no executor.
+	 *
+	 * @param size
+	 * @param stripe
+	 */
+	protected void runStripes(final int size, final Stripe stripe) {
+
+		final int n = Math.min(size, numStripes);
+		if (n <= 1) {
+			stripe.run(0, size);
+			return;
+		}
+
+		final ArrayList<Future<?>> futures = new ArrayList<>();
+		for (int i = 0; i < n; ++i) {
+			final int from = (int)((long)size * i / n);
+			final int to = (int)((long)size * (i + 1) / n);
+			futures.add(exec.submit(() -> stripe.run(from, to)));
+		}
+		try {
+			for (final Future<?> future : futures)
+				future.get();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (final ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	/**
+	 * Build the integral images of values and squared values, first
+	 * cumulative sums along rows, then along columns.
+	 */
+	protected void integrate() {
+
+		final int width = fp.getWidth();
+		final int height = fp.getHeight();
+		final int w1 = width + 1;
+
+		runStripes(height, (from, to) -> {
+			for (int y = from; y < to; ++y) {
+				final int row = y * width;
+				final int integralRow = (y + 1) * w1;
+				double sum = 0;
+				double sumOfSquares = 0;
+				for (int x = 0; x < width; ++x) {
+					final double v = fp.getf(row + x);
+					sum += v;
+					sumOfSquares += v * v;
+					sums[integralRow + x + 1] = sum;
+					sumsOfSquares[integralRow + x + 1] = sumOfSquares;
+				}
+			}
+		});
+
+		runStripes(width, (from, to) -> {
+			for (int y = 1; y < height; ++y) {
+				final int integralRow = (y + 1) * w1;
+				final int previousIntegralRow = y * w1;
+				for (int x = from + 1; x <= to; ++x) {
+					sums[integralRow + x] += sums[previousIntegralRow + x];
+					sumsOfSquares[integralRow + x] += sumsOfSquares[previousIntegralRow + x];
+				}
+			}
+		});
+	}
+
+	/**
+	 * Sum over the block (xMin, xMax] x (yMin, yMax] with xMin, yMin &gt;= -1
+	 * like {@link mpicbg.ij.integral.DoubleIntegralImage#getDoubleSum(int, int, int, int)}.
+	 */
+	final protected double getDoubleSum(
+			final double[] integral,
+			final int xMin,
+			final int yMin,
+			final int xMax,
+			final int yMax) {
+
+		final int w1 = fp.getWidth() + 1;
+		final int rowMin = (yMin + 1) * w1;
+		final int rowMax = (yMax + 1) * w1;
+		return integral[rowMax + xMax + 1] - integral[rowMin + xMax + 1] - integral[rowMax + xMin + 1] + integral[rowMin + xMin + 1];
 	}
 
 
@@ -38,25 +214,27 @@ public class CLLCN extends BlockStatistics {
 
 		final int w = width - 1;
 		final int h = height - 1;
-		for (int y = 0; y < height; ++y) {
-			final int row = y * width;
-			final int yMin = Math.max(-1, y - blockRadiusY - 1);
-			final int yMax = Math.min(h, y + blockRadiusY);
-			final int bh = yMax - yMin;
-			for (int x = 0; x < width; ++x) {
-				final int xMin = Math.max(-1, x - blockRadiusX - 1);
-				final int xMax = Math.min(w, x + blockRadiusX);
-				final long bs = (xMax - xMin) * bh;
-				final double scale = 1.0 / bs;
-				final double sum = sums.getDoubleSum(xMin, yMin, xMax, yMax);
-				final int i = row + x;
-
-				final double mean = sum * scale;
-				final float v = fp.getf(i);
-
-				fp.setf(i, (float)((v - mean) + fpMean));
+		runStripes(height, (from, to) -> {
+			for (int y = from; y < to; ++y) {
+				final int row = y * width;
+				final int yMin = Math.max(-1, y - blockRadiusY - 1);
+				final int yMax = Math.min(h, y + blockRadiusY);
+				final int bh = yMax - yMin;
+				for (int x = 0; x < width; ++x) {
+					final int xMin = Math.max(-1, x - blockRadiusX - 1);
+					final int xMax = Math.min(w, x + blockRadiusX);
+					final long bs = (xMax - xMin) * bh;
+					final double scale = 1.0 / bs;
+					final double sum = getDoubleSum(sums, xMin, yMin, xMax, yMax);
+					final int i = row + x;
+
+					final double mean = sum * scale;
+					final float v = fp.getf(i);
+
+					fp.setf(i, (float)((v - mean) + fpMean));
+				}
 			}
-		}
+		});
 	}
 
 	/**
@@ -78,31 +256,33 @@ public class CLLCN extends BlockStatistics {
 
 		final int w = width - 1;
 		final int h = height - 1;
-		for (int y = 0; y < height; ++y) {
-			final int row = y * width;
-			final int yMin = Math.max(-1, y - blockRadiusY - 1);
-			final int yMax = Math.min(h, y + blockRadiusY);
-			final int bh = yMax - yMin;
-			for (int x = 0; x < width; ++x) {
-				final int xMin = Math.max(-1, x - blockRadiusX - 1);
-				final int xMax = Math.min(w, x + blockRadiusX);
-				final long bs = (xMax - xMin) * bh;
-				final double scale1 = 1.0 / (bs - 1);
-				final double scale2 = 1.0 / (bs * bs - bs);
-				final double sum = sums.getDoubleSum(xMin, yMin, xMax, yMax);
-				final double var = scale1 * sumsOfSquares.getDoubleSum(xMin, yMin, xMax, yMax) - scale2 * sum * sum;
-				final int i = row + x;
-
-				final double std = var < 0 ? 0 : Math.sqrt(var);
-				final float v = fp.getf(i);
-				final double d = meanFactor * std;
-
-				fp.setf(i, (float)((v - fpMean) / 2 / d * fpLength + fpMean));
+		runStripes(height, (from, to) -> {
+			for (int y = from; y < to; ++y) {
+				final int row = y * width;
+				final int yMin = Math.max(-1, y - blockRadiusY - 1);
+				final int yMax = Math.min(h, y + blockRadiusY);
+				final int bh = yMax - yMin;
+				for (int x = 0; x < width; ++x) {
+					final int xMin = Math.max(-1, x - blockRadiusX - 1);
+					final int xMax = Math.min(w, x + blockRadiusX);
+					final long bs = (xMax - xMin) * bh;
+					final double scale1 = 1.0 / (bs - 1);
+					final double scale2 = 1.0 / (bs * bs - bs);
+					final double sum = getDoubleSum(sums, xMin, yMin, xMax, yMax);
+					final double var = scale1 * getDoubleSum(sumsOfSquares, xMin, yMin, xMax, yMax) - scale2 * sum * sum;
+					final int i = row + x;
+
+					final double std = var < 0 ? 0 : Math.sqrt(var);
+					final float v = fp.getf(i);
+					final double d = meanFactor * std;
+
+					fp.setf(i, (float)((v - fpMean) / 2 / d * fpLength + fpMean));
+				}
 			}
-		}
+		});
 	}
 
-	private static double limit(
+	static double limit(
 			final double x,
 			final double limit,
 			final double gamma,
@@ -140,34 +320,36 @@ public class CLLCN extends BlockStatistics {
 
 		final int w = width - 1;
 		final int h = height - 1;
-		for (int y = 0; y < height; ++y) {
-			final int row = y * width;
-			final int yMin = Math.max(-1, y - blockRadiusY - 1);
-			final int yMax = Math.min(h, y + blockRadiusY);
-			final int bh = yMax - yMin;
-			for (int x = 0; x < width; ++x) {
-				final int xMin = Math.max(-1, x - blockRadiusX - 1);
-				final int xMax = Math.min(w, x + blockRadiusX);
-				final long bs = (xMax - xMin) * bh;
-				final double scale1 = 1.0 / (bs - 1);
-				final double scale2 = 1.0 / (bs * bs - bs);
-				final double sum = sums.getDoubleSum(xMin, yMin, xMax, yMax);
-				final double var = scale1 * sumsOfSquares.getDoubleSum(xMin, yMin, xMax, yMax) - scale2 * sum * sum;
-				final int i = row + x;
-
-				final double std = var < 0 ? 0 : Math.sqrt(var);
-				final float v = fp.getf(i);
-				final double d = meanFactor * std;
-				final double s = d == 0 ? 0 : 0.5 * limit(
-						1 / d * fpLength,
-						limit,
-						gamma,
-						gradientOnePointMinusLimit,
-						limitMinusGradientOnePointPowGamma);
-
-				fp.setf(i, (float)((v - fpMean) * s * fpLength + fpMean));
+		runStripes(height, (from, to) -> {
+			for (int y = from; y < to; ++y) {
+				final int row = y * width;
+				final int yMin = Math.max(-1, y - blockRadiusY - 1);
+				final int yMax = Math.min(h, y + blockRadiusY);
+				final int bh = yMax - yMin;
+				for (int x = 0; x < width; ++x) {
+					final int xMin = Math.max(-1, x - blockRadiusX - 1);
+					final int xMax = Math.min(w, x + blockRadiusX);
+					final long bs = (xMax - xMin) * bh;
+					final double scale1 = 1.0 / (bs - 1);
+					final double scale2 = 1.0 / (bs * bs - bs);
+					final double sum = getDoubleSum(sums, xMin, yMin, xMax, yMax);
+					final double var = scale1 * getDoubleSum(sumsOfSquares, xMin, yMin, xMax, yMax) - scale2 * sum * sum;
+					final int i = row + x;
+
+					final double std = var < 0 ? 0 : Math.sqrt(var);
+					final float v = fp.getf(i);
+					final double d = meanFactor * std;
+					final double s = d == 0 ? 0 : 0.5 * limit(
+							1 / d * fpLength,
+							limit,
+							gamma,
+							gradientOnePointMinusLimit,
+							limitMinusGradientOnePointPowGamma);
+
+					fp.setf(i, (float)((v - fpMean) * s * fpLength + fpMean));
+				}
 			}
-		}
+		});
 	}
 
 
@@ -189,31 +371,33 @@ public class CLLCN extends BlockStatistics {
 
 		final int w = width - 1;
 		final int h = height - 1;
-		for (int y = 0; y < height; ++y) {
-			final int row = y * width;
-			final int yMin = Math.max(-1, y - blockRadiusY - 1);
-			final int yMax = Math.min(h, y + blockRadiusY);
-			final int bh = yMax - yMin;
-			for (int x = 0; x < width; ++x) {
-				final int xMin = Math.max(-1, x - blockRadiusX - 1);
-				final int xMax = Math.min(w, x + blockRadiusX);
-				final long bs = (xMax - xMin) * bh;
-				final double scale = 1.0 / bs;
-				final double scale1 = 1.0 / (bs - 1);
-				final double scale2 = 1.0 / (bs * bs - bs);
-				final double sum = sums.getDoubleSum(xMin, yMin, xMax, yMax);
-				final double var = scale1 * sumsOfSquares.getDoubleSum(xMin, yMin, xMax, yMax) - scale2 * sum * sum;
-				final int i = row + x;
-
-				final double mean = sum * scale;
-				final double std = var < 0 ? 0 : Math.sqrt(var);
-				final float v = fp.getf(i);
-				final double d = meanFactor * std;
-				final double min = mean - d;
-
-				fp.setf(i, (float)((v - min) / 2 / d * fpLength + fpMin));
+		runStripes(height, (from, to) -> {
+			for (int y = from; y < to; ++y) {
+				final int row = y * width;
+				final int yMin = Math.max(-1, y - blockRadiusY - 1);
+				final int yMax = Math.min(h, y + blockRadiusY);
+				final int bh = yMax - yMin;
+				for (int x = 0; x < width; ++x) {
+					final int xMin = Math.max(-1, x - blockRadiusX - 1);
+					final int xMax = Math.min(w, x + blockRadiusX);
+					final long bs = (xMax - xMin) * bh;
+					final double scale = 1.0 / bs;
+					final double scale1 = 1.0 / (bs - 1);
+					final double scale2 = 1.0 / (bs * bs - bs);
+					final double sum = getDoubleSum(sums, xMin, yMin, xMax, yMax);
+					final double var = scale1 * getDoubleSum(sumsOfSquares, xMin, yMin, xMax, yMax) - scale2 * sum * sum;
+					final int i = row + x;
+
+					final double mean = sum * scale;
+					final double std = var < 0 ? 0 : Math.sqrt(var);
+					final float v = fp.getf(i);
+					final double d = meanFactor * std;
+					final double min = mean - d;
+
+					fp.setf(i, (float)((v - min) / 2 / d * fpLength + fpMin));
+				}
 			}
-		}
+		});
 	}
 
 
@@ -243,44 +427,302 @@ public class CLLCN extends BlockStatistics {
 
 		final int w = width - 1;
 		final int h = height - 1;
-		for (int y = 0; y < height; ++y) {
+		runStripes(height, (from, to) -> {
+			for (int y = from; y < to; ++y) {
+				final int row = y * width;
+				final int yMin = Math.max(-1, y - blockRadiusY - 1);
+				final int yMax = Math.min(h, y + blockRadiusY);
+				final int bh = yMax - yMin;
+				for (int x = 0; x < width; ++x) {
+					final int xMin = Math.max(-1, x - blockRadiusX - 1);
+					final int xMax = Math.min(w, x + blockRadiusX);
+					final long bs = (xMax - xMin) * bh;
+					final double scale = 1.0 / bs;
+					final double scale1 = 1.0 / (bs - 1);
+					final double scale2 = 1.0 / (bs * bs - bs);
+					final double sum = getDoubleSum(sums, xMin, yMin, xMax, yMax);
+					final double var = scale1 * getDoubleSum(sumsOfSquares, xMin, yMin, xMax, yMax) - scale2 * sum * sum;
+					final int i = row + x;
+
+					final double mean = sum * scale;
+					final double std = var < 0 ? 0 : Math.sqrt(var);
+					final float v = fp.getf(i);
+					if (keepMinMax && (v == fpMin || v == fpMax))
+						continue;
+					final double d = meanFactor * std;
+					final double s = d == 0 ? 0 : 0.5 * limit(
+							1 / d * fpLength,
+							limit,
+							gamma,
+							gradientOnePointMinusLimit,
+							limitMinusGradientOnePointPowGamma);
+					final double min = mean - fpLength / s * 0.5;
+
+	//				if (d != 0 )
+	//					System.out.println(0.5 / d * fpLength + " " + s);
+
+					fp.setf(i, (float)((v - min) * s + fpMin));
+				}
+			}
+		});
+	}
+
+
+	/**
+	 * The per pixel transfer functions of
+	 * {@link CLLCN#run(int, int, float, float, float, boolean, boolean, boolean)}
+	 * given value, block sum, block sum of squares, and block size.
+	 */
+	public static class Transform {
+
+		final float meanFactor, limit, gamma;
+		final boolean center, stretch, keepMinMax;
+		final double fpMin, fpMax, fpLength, fpMean;
+		final double gradientOnePointMinusLimit, limitMinusGradientOnePointPowGamma;
+
+		public Transform(
+				final float meanFactor,
+				final float limit,
+				final float gamma,
+				final boolean center,
+				final boolean stretch,
+				final boolean keepMinMax,
+				final double fpMin,
+				final double fpMax) {
+
+			this.meanFactor = meanFactor;
+			this.limit = limit;
+			this.gamma = gamma;
+			this.center = center;
+			this.stretch = stretch;
+			this.keepMinMax = keepMinMax;
+			this.fpMin = fpMin;
+			this.fpMax = fpMax;
+			fpLength = fpMax - fpMin;
+			fpMean = fpLength / 2.0 + fpMin;
+
+			final double gradientOnePoint = 1.0 / (Math.pow(gamma, 1.0 / (gamma - 1.0)));
+			gradientOnePointMinusLimit = gradientOnePoint - limit;
+			limitMinusGradientOnePointPowGamma = limit - Math.pow(gradientOnePoint, gamma);
+		}
+
+		private double d(final double sum, final double sumOfSquares, final long bs) {
+
+			final double scale1 = 1.0 / (bs - 1);
+			final double scale2 = 1.0 / (bs * bs - bs);
+			final double var = scale1 * sumOfSquares - scale2 * sum * sum;
+			return meanFactor * (var < 0 ? 0 : Math.sqrt(var));
+		}
+
+		private double s(final double d) {
+
+			return d == 0 ? 0 : 0.5 * limit(
+					1 / d * fpLength,
+					limit,
+					gamma,
+					gradientOnePointMinusLimit,
+					limitMinusGradientOnePointPowGamma);
+		}
+
+		public double apply(
+				final double v,
+				final double sum,
+				final double sumOfSquares,
+				final long bs) {
+
+			if (center) {
+				final double mean = sum * (1.0 / bs);
+				if (stretch) {
+					if (gamma == 1) {
+						final double d = d(sum, sumOfSquares, bs);
+						final double min = mean - d;
+						return (v - min) / 2 / d * fpLength + fpMin;
+					} else {
+						if (keepMinMax && (v == fpMin || v == fpMax))
+							return v;
+						final double s = s(d(sum, sumOfSquares, bs));
+						final double min = mean - fpLength / s * 0.5;
+						return (v - min) * s + fpMin;
+					}
+				} else
+					return (v - mean) + fpMean;
+			} else if (stretch) {
+				if (gamma == 1)
+					return (v - fpMean) / 2 / d(sum, sumOfSquares, bs) * fpLength + fpMean;
+				else
+					return (v - fpMean) * s(d(sum, sumOfSquares, bs)) * fpLength + fpMean;
+			} else
+				return v;
+		}
+	}
+
+	/**
+	 * Returns true if all pixels are integers and the sum of squares of a
+	 * block of the given size cannot overflow a long.
+	 */
+	protected boolean isIntegral(final int blockRadiusX, final int blockRadiusY) {
+
+		final float[] pixels = (float[])fp.getPixels();
+		double maxAbs = 0;
+		for (final float v : pixels) {
+			if (v != Math.rint(v))
+				return false;
+			maxAbs = Math.max(maxAbs, Math.abs(v));
+		}
+		final double bs = (2.0 * blockRadiusX + 1) * (2.0 * blockRadiusY + 1);
+		return maxAbs * maxAbs * bs < Long.MAX_VALUE / 2;
+	}
+
+	/**
+	 * Sliding window implementation.  Column sums over the rows of the
+	 * window are updated when moving down one row, block sums are updated
+	 * from column sums when moving right one pixel.  Results are kept in a
+	 * ring buffer of blockRadiusY + 1 rows until the input row is not needed
+	 * anymore.
+	 *
+	 * @param blockRadiusX
+	 * @param blockRadiusY
+	 * @param transform
+	 */
+	protected void runLowMemory(
+			final int blockRadiusX,
+			final int blockRadiusY,
+			final Transform transform) {
+
+		final int width = fp.getWidth();
+		final int height = fp.getHeight();
+		final float[] pixels = (float[])fp.getPixels();
+
+		final boolean integral = isIntegral(blockRadiusX, blockRadiusY);
+
+		/* exact */
+		final long[] columnSumsLong = integral ? new long[width] : null;
+		final long[] columnSumsOfSquaresLong = integral ? new long[width] : null;
+
+		/* compensated */
+		final double[] columnSums = integral ? null : new double[width];
+		final double[] columnSumsOfSquares = integral ? null : new double[width];
+		final double[] columnSumsC = integral ? null : new double[width];
+		final double[] columnSumsOfSquaresC = integral ? null : new double[width];
+
+		final int ringSize = Math.min(height, blockRadiusY + 1);
+		final float[] ring = new float[ringSize * width];
+
+		for (int y = -blockRadiusY; y < height; ++y) {
+
+			/* add the row entering, remove the row leaving the window */
+			final int yIn = y + blockRadiusY;
+			final int yOut = y - blockRadiusY - 1;
+			if (yIn < height) {
+				final int row = yIn * width;
+				for (int x = 0; x < width; ++x) {
+					final double v = pixels[row + x];
+					if (integral) {
+						final long l = (long)v;
+						columnSumsLong[x] += l;
+						columnSumsOfSquaresLong[x] += l * l;
+					} else {
+						neumaier(columnSums, columnSumsC, x, v);
+						neumaier(columnSumsOfSquares, columnSumsOfSquaresC, x, v * v);
+					}
+				}
+			}
+			if (yOut >= 0) {
+				final int row = yOut * width;
+				for (int x = 0; x < width; ++x) {
+					final double v = pixels[row + x];
+					if (integral) {
+						final long l = (long)v;
+						columnSumsLong[x] -= l;
+						columnSumsOfSquaresLong[x] -= l * l;
+					} else {
+						neumaier(columnSums, columnSumsC, x, -v);
+						neumaier(columnSumsOfSquares, columnSumsOfSquaresC, x, -v * v);
+					}
+				}
+
+				/* the leaving row is not needed anymore, write its result */
+				System.arraycopy(ring, (yOut % ringSize) * width, pixels, row, width);
+			}
+
+			if (y < 0)
+				continue;
+
+			/* slide along the row */
+			final int bh = Math.min(height - 1, y + blockRadiusY) - Math.max(0, y - blockRadiusY) + 1;
 			final int row = y * width;
-			final int yMin = Math.max(-1, y - blockRadiusY - 1);
-			final int yMax = Math.min(h, y + blockRadiusY);
-			final int bh = yMax - yMin;
-			for (int x = 0; x < width; ++x) {
-				final int xMin = Math.max(-1, x - blockRadiusX - 1);
-				final int xMax = Math.min(w, x + blockRadiusX);
-				final long bs = (xMax - xMin) * bh;
-				final double scale = 1.0 / bs;
-				final double scale1 = 1.0 / (bs - 1);
-				final double scale2 = 1.0 / (bs * bs - bs);
-				final double sum = sums.getDoubleSum(xMin, yMin, xMax, yMax);
-				final double var = scale1 * sumsOfSquares.getDoubleSum(xMin, yMin, xMax, yMax) - scale2 * sum * sum;
-				final int i = row + x;
-
-				final double mean = sum * scale;
-				final double std = var < 0 ? 0 : Math.sqrt(var);
-				final float v = fp.getf(i);
-				if (keepMinMax && (v == fpMin || v == fpMax))
+			final int ringRow = (y % ringSize) * width;
+			long sumLong = 0, sumOfSquaresLong = 0;
+			double sum = 0, sumC = 0, sumOfSquares = 0, sumOfSquaresC = 0;
+			for (int x = -blockRadiusX; x < width; ++x) {
+				final int xIn = x + blockRadiusX;
+				final int xOut = x - blockRadiusX - 1;
+				if (integral) {
+					if (xIn < width) {
+						sumLong += columnSumsLong[xIn];
+						sumOfSquaresLong += columnSumsOfSquaresLong[xIn];
+					}
+					if (xOut >= 0) {
+						sumLong -= columnSumsLong[xOut];
+						sumOfSquaresLong -= columnSumsOfSquaresLong[xOut];
+					}
+				} else {
+					if (xIn < width) {
+						final double a = columnSums[xIn] + columnSumsC[xIn];
+						final double t = sum + a;
+						sumC += Math.abs(sum) >= Math.abs(a) ? (sum - t) + a : (a - t) + sum;
+						sum = t;
+						final double b = columnSumsOfSquares[xIn] + columnSumsOfSquaresC[xIn];
+						final double u = sumOfSquares + b;
+						sumOfSquaresC += Math.abs(sumOfSquares) >= Math.abs(b) ? (sumOfSquares - u) + b : (b - u) + sumOfSquares;
+						sumOfSquares = u;
+					}
+					if (xOut >= 0) {
+						final double a = -(columnSums[xOut] + columnSumsC[xOut]);
+						final double t = sum + a;
+						sumC += Math.abs(sum) >= Math.abs(a) ? (sum - t) + a : (a - t) + sum;
+						sum = t;
+						final double b = -(columnSumsOfSquares[xOut] + columnSumsOfSquaresC[xOut]);
+						final double u = sumOfSquares + b;
+						sumOfSquaresC += Math.abs(sumOfSquares) >= Math.abs(b) ? (sumOfSquares - u) + b : (b - u) + sumOfSquares;
+						sumOfSquares = u;
+					}
+				}
+
+				if (x < 0)
 					continue;
-				final double d = meanFactor * std;
-				final double s = d == 0 ? 0 : 0.5 * limit(
-						1 / d * fpLength,
-						limit,
-						gamma,
-						gradientOnePointMinusLimit,
-						limitMinusGradientOnePointPowGamma);
-				final double min = mean - fpLength / s * 0.5;
-
-//				if (d != 0 )
-//					System.out.println(0.5 / d * fpLength + " " + s);
-
-				fp.setf(i, (float)((v - min) * s + fpMin));
+
+				final long bs = (long)(Math.min(width - 1, x + blockRadiusX) - Math.max(0, x - blockRadiusX) + 1) * bh;
+				final float v = pixels[row + x];
+				ring[ringRow + x] = integral ?
+						(float)transform.apply(v, sumLong, sumOfSquaresLong, bs) :
+						(float)transform.apply(v, sum + sumC, sumOfSquares + sumOfSquaresC, bs);
 			}
 		}
+
+		/* write the remaining results */
+		for (int y = Math.max(0, height - ringSize); y < height; ++y)
+			System.arraycopy(ring, (y % ringSize) * width, pixels, y * width, width);
 	}
 
+	/**
+	 * Neumaier's compensated summation of sums[i] + value, with the
+	 * compensation in compensations[i].
+	 */
+	private static void neumaier(
+			final double[] sums,
+			final double[] compensations,
+			final int i,
+			final double value) {
+
+		final double sum = sums[i];
+		final double t = sum + value;
+		if (Math.abs(sum) >= Math.abs(value))
+			compensations[i] += (sum - t) + value;
+		else
+			compensations[i] += (value - t) + sum;
+		sums[i] = t;
+	}
 
 	/**
 	 *
@@ -297,6 +739,14 @@ public class CLLCN extends BlockStatistics {
 			final boolean stretch,
 			final boolean keepMinMax) {
 
+		if (sums == null) {
+			runLowMemory(
+					blockRadiusX,
+					blockRadiusY,
+					new Transform(meanFactor, limit, gamma, center, stretch, keepMinMax, fp.getMin(), fp.getMax()));
+			return;
+		}
+
 		if (gamma == 1) {
 			if (center) {
 				if (stretch)
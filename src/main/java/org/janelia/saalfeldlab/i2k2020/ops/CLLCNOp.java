@@ -0,0 +1,220 @@
+package org.janelia.saalfeldlab.i2k2020.ops;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+import org.janelia.saalfeldlab.i2k2020.util.Lines;
+
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * Contrast Limited Local Contrast Normalization as a cell loader that works
+ * directly on imglib2 blocks.  Same parameters and results as
+ * {@link CLLCN} in an {@link ImageJStackOp} with padding = blockRadius,
+ * but without the round trip through {@link ij.process.FloatProcessor}
+ * slices.
+ *
+ * The window has as many dimensions as blockRadius has entries (2 or 3).
+ * Block sums and sums of squares are looked up from summed-area/-volume
+ * tables over the padded block (or padded slice if the window has fewer
+ * dimensions than the block) and written straight into the output cell.
+ *
+ * @author Stephan Saalfeld
+ * @param <T> type of input and output
+ */
+public class CLLCNOp<T extends RealType<T> & NativeType<T>> implements Consumer<RandomAccessibleInterval<T>> {
+
+	final RandomAccessible<T> input;
+	final int[] blockRadius;
+	final float meanFactor, limit, gamma;
+	final boolean center, stretch, keepMinMax;
+	final double minIntensity, maxIntensity;
+
+	/**
+	 *
+	 * @param input
+	 * @param blockRadius radius of the window, 2 or 3 dimensions
+	 * @param meanFactor
+	 * @param limit
+	 * @param gamma
+	 * @param center
+	 * @param stretch
+	 * @param keepMinMax
+	 * @param minIntensity used like the display range min of the {@link ij.process.FloatProcessor}
+	 * @param maxIntensity used like the display range max of the {@link ij.process.FloatProcessor}
+	 */
+	public CLLCNOp(
+			final RandomAccessible<T> input,
+			final int[] blockRadius,
+			final float meanFactor,
+			final float limit,
+			final float gamma,
+			final boolean center,
+			final boolean stretch,
+			final boolean keepMinMax,
+			final double minIntensity,
+			final double maxIntensity) {
+
+		this.input = input;
+		this.blockRadius = blockRadius;
+		this.meanFactor = meanFactor;
+		this.limit = limit;
+		this.gamma = gamma;
+		this.center = center;
+		this.stretch = stretch;
+		this.keepMinMax = keepMinMax;
+		this.minIntensity = minIntensity;
+		this.maxIntensity = maxIntensity;
+	}
+
+	public int[] getBlockRadius() {
+
+		return blockRadius;
+	}
+
+	@Override
+	public void accept(final RandomAccessibleInterval<T> output) {
+
+		final int n = output.numDimensions();
+		final int m = Math.min(n, blockRadius.length);
+
+		final long[] sliceMin = Intervals.minAsLongArray(output);
+		final long[] sliceMax = Intervals.maxAsLongArray(output);
+		final long[] paddedMin = sliceMin.clone();
+		final long[] paddedMax = sliceMax.clone();
+		final long[] max = sliceMax.clone();
+
+		/* padded window dimensions and summed-volume table dimensions */
+		final int[] outputDimensions = new int[m];
+		final int[] tableDimensions = new int[m];
+		long tableSizeLong = 1;
+		for (int d = 0; d < m; ++d) {
+			final long tableDimension = output.dimension(d) + 2L * blockRadius[d] + 1;
+			tableSizeLong *= tableDimension;
+			/* two double tables, leave headroom for the JVM array length limit */
+			if (tableSizeLong > Integer.MAX_VALUE - 8 || 16 * tableSizeLong > Runtime.getRuntime().maxMemory())
+				throw new IllegalArgumentException(
+						"Summed-volume tables for block " + Arrays.toString(Intervals.dimensionsAsLongArray(output)) +
+						" with radius " + Arrays.toString(blockRadius) +
+						" do not fit into memory, use smaller blocks or a smaller radius.");
+			outputDimensions[d] = (int)output.dimension(d);
+			tableDimensions[d] = (int)tableDimension;
+			paddedMin[d] -= blockRadius[d];
+			paddedMax[d] += blockRadius[d];
+		}
+		for (int d = m; d < n; ++d)
+			sliceMax[d] = paddedMax[d] = sliceMin[d];
+
+		final int tableSize = (int)tableSizeLong;
+		final double[] sums = new double[tableSize];
+		final double[] sumsOfSquares = new double[tableSize];
+
+		/* corners of the window relative to its max corner in the tables */
+		final int numCorners = 1 << m;
+		final int[] cornerOffsets = new int[numCorners];
+		final double[] cornerSigns = new double[numCorners];
+		long windowSize = 1;
+		for (int c = 0; c < numCorners; ++c) {
+			cornerSigns[c] = 1;
+			for (int d = 0; d < m; ++d) {
+				if ((c & (1 << d)) != 0) {
+					cornerOffsets[c] -= (2 * blockRadius[d] + 1) * Lines.stride(tableDimensions, d);
+					cornerSigns[c] = -cornerSigns[c];
+				}
+			}
+		}
+		for (int d = 0; d < m; ++d)
+			windowSize *= 2 * blockRadius[d] + 1;
+
+		/* table lines that hold data, and table lines at window max corners of output pixels */
+		final int[] dataMin = new int[m];
+		final int[] dataMax = new int[m];
+		final int[] tableMin = new int[m];
+		final int[] tableMax = new int[m];
+		final int[] outputMin = new int[m];
+		final int[] outputMax = new int[m];
+		for (int d = 0; d < m; ++d) {
+			dataMin[d] = 1;
+			dataMax[d] = tableDimensions[d] - 1;
+			tableMax[d] = tableDimensions[d] - 1;
+			outputMin[d] = 2 * blockRadius[d] + 1;
+			outputMax[d] = tableDimensions[d] - 1;
+		}
+
+		final CLLCN.Transform transform = new CLLCN.Transform(
+				meanFactor,
+				limit,
+				gamma,
+				center,
+				stretch,
+				keepMinMax,
+				minIntensity,
+				maxIntensity);
+		final long bs = windowSize;
+
+		for (boolean hasNext = true; hasNext;) {
+
+			/* fill the tables */
+			Arrays.fill(sums, 0);
+			Arrays.fill(sumsOfSquares, 0);
+			final Cursor<T> in = Views.flatIterable(Views.interval(input, new FinalInterval(paddedMin, paddedMax))).cursor();
+			final int paddedWidth = tableDimensions[0] - 1;
+			Lines.forEachLine(tableDimensions, 0, dataMin, dataMax, offset -> {
+				for (int i = offset + 1, x = 0; x < paddedWidth; ++i, ++x) {
+					final double v = in.next().getRealDouble();
+					sums[i] = v;
+					sumsOfSquares[i] = v * v;
+				}
+			});
+			for (int e = 0; e < m; ++e) {
+				final int stride = Lines.stride(tableDimensions, e);
+				final int length = tableDimensions[e];
+				Lines.forEachLine(tableDimensions, e, tableMin, tableMax, offset -> {
+					for (int i = offset + stride, x = 1; x < length; i += stride, ++x) {
+						sums[i] += sums[i - stride];
+						sumsOfSquares[i] += sumsOfSquares[i - stride];
+					}
+				});
+			}
+
+			/* transform the output pixels */
+			final FinalInterval sliceInterval = new FinalInterval(sliceMin, sliceMax);
+			final Cursor<T> source = Views.flatIterable(Views.interval(input, sliceInterval)).cursor();
+			final Cursor<T> target = Views.flatIterable(Views.interval(output, sliceInterval)).cursor();
+			final int width = outputDimensions[0];
+			Lines.forEachLine(tableDimensions, 0, outputMin, outputMax, offset -> {
+				for (int i = offset + outputMin[0], x = 0; x < width; ++i, ++x) {
+					double sum = 0;
+					double sumOfSquares = 0;
+					for (int c = 0; c < numCorners; ++c) {
+						final int j = i + cornerOffsets[c];
+						sum += cornerSigns[c] * sums[j];
+						sumOfSquares += cornerSigns[c] * sumsOfSquares[j];
+					}
+					final double v = transform.apply(source.next().getRealDouble(), sum, sumOfSquares, bs);
+					target.next().setReal(Math.min(maxIntensity, Math.max(minIntensity, v)));
+				}
+			});
+
+			/* next slice */
+			hasNext = false;
+			for (int d = m; d < n; ++d) {
+				++sliceMin[d];
+				if (sliceMin[d] <= max[d]) {
+					hasNext = true;
+					break;
+				} else
+					sliceMin[d] = output.min(d);
+			}
+			for (int d = m; d < n; ++d)
+				sliceMax[d] = paddedMin[d] = paddedMax[d] = sliceMin[d];
+		}
+	}
+}
@@ -1,16 +1,24 @@
 package org.janelia.saalfeldlab.i2k2020.ops;
 
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.function.Consumer;
 
+import org.janelia.saalfeldlab.i2k2020.util.Lazy;
 import org.janelia.saalfeldlab.i2k2020.util.Util;
 
-import ij.ImagePlus;
 import ij.process.FloatProcessor;
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
 import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.cache.img.SingleCellArrayImg;
 import net.imglib2.converter.Converters;
-import net.imglib2.img.imageplus.ImagePlusImgs;
+import net.imglib2.img.NativeImg;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.FloatType;
@@ -23,6 +31,17 @@ import net.imglib2.view.Views;
  * generated by ImageJ slice filters.  Always goes through
  * {@link FloatProcessor}.  Is this necessary?
  *
+ * If an {@link ExecutorService} is passed, the slices of a block are
+ * filtered in parallel on that executor.  Each thread re-uses its
+ * {@link FloatProcessor} for all slices of the same size.  Do not pass the
+ * executor that loads the cells unless it is a
+ * {@link java.util.concurrent.ForkJoinPool}, it may run out of threads.
+ *
+ * Array backed input ({@link ArrayImg}) is copied array to array into the
+ * {@link FloatProcessor}, and array backed output ({@link ArrayImg},
+ * {@link SingleCellArrayImg} as passed by {@link Lazy}) is written directly
+ * into its storage.  Everything else goes through cursors.
+ *
  * @author Stephan Saalfeld
  * @param <T> type of input and output
  */
@@ -32,19 +51,40 @@ public class ImageJStackOp<T extends RealType<T> & NativeType<T>> implements Con
 	final Consumer<FloatProcessor> sliceFilter;
 	final double minIntensity, maxIntensity;
 	final int padding;
+	final ExecutorService exec;
+
+	private final ThreadLocal<FloatProcessor> floatProcessors = new ThreadLocal<>();
 
 	public ImageJStackOp(
 			final RandomAccessible<T> input,
 			final Consumer<FloatProcessor> sliceFilter,
 			final int padding,
 			final double minIntensity,
-			final double maxIntensity) {
+			final double maxIntensity,
+			final ExecutorService exec) {
 
 		this.input = input;
 		this.sliceFilter = sliceFilter;
 		this.minIntensity = minIntensity;
 		this.maxIntensity = maxIntensity;
 		this.padding = padding;
+		this.exec = exec;
+	}
+
+	public ImageJStackOp(
+			final RandomAccessible<T> input,
+			final Consumer<FloatProcessor> sliceFilter,
+			final int padding,
+			final double minIntensity,
+			final double maxIntensity) {
+
+		this(
+				input,
+				sliceFilter,
+				padding,
+				minIntensity,
+				maxIntensity,
+				null);
 	}
 
 	public ImageJStackOp(
@@ -60,11 +100,161 @@ public class ImageJStackOp<T extends RealType<T> & NativeType<T>> implements Con
 				Float.MAX_VALUE);
 	}
 
+	public int getPadding() {
+
+		return padding;
+	}
+
+	/**
+	 * Returns this thread's {@link FloatProcessor}, re-allocated if the size
+	 * changed.
+	 *
+	 * @param width
+	 * @param height
+	 * @return
+	 */
+	private FloatProcessor floatProcessor(final int width, final int height) {
+
+		FloatProcessor fp = floatProcessors.get();
+		if (fp == null || fp.getWidth() != width || fp.getHeight() != height) {
+			fp = new FloatProcessor(width, height);
+			floatProcessors.set(fp);
+		}
+		return fp;
+	}
+
+	/**
+	 * Returns img as a {@link NativeImg} if it is backed by a single flat
+	 * Java array, null otherwise, e.g. for images backed by nio buffers.
+	 *
+	 * @param img
+	 * @return
+	 */
 	@SuppressWarnings("unchecked")
+	private static <T extends NativeType<T>> NativeImg<T, ?> flatArrayImg(final RandomAccessible<T> img) {
+
+		if ((img instanceof ArrayImg || img instanceof SingleCellArrayImg) &&
+				((NativeImg<T, ?>)img).update(null) instanceof ArrayDataAccess)
+			return (NativeImg<T, ?>)img;
+		else
+			return null;
+	}
+
+	/**
+	 * Copy the padded input slice into the pixels of a {@link FloatProcessor}.
+	 * Copies array to array if the input is an {@link ArrayImg} or
+	 * {@link SingleCellArrayImg} that contains the slice.
+	 */
+	private void copyInput(
+			final RandomAccessibleInterval<FloatType> inputSlice,
+			final long[] min,
+			final long[] max,
+			final long[] slicePosition,
+			final FloatProcessor fp) {
+
+		final NativeImg<T, ?> inputImg = flatArrayImg(input);
+		if (inputImg == null || !Intervals.contains(inputImg, new FinalInterval(min, max))) {
+			Util.materialize(inputSlice, fp);
+			return;
+		}
+
+		final float[] pixels = (float[])fp.getPixels();
+		final int width = fp.getWidth();
+		final int height = fp.getHeight();
+
+		/* flat index of the first pixel */
+		final long[] position = slicePosition.clone();
+		position[0] = min[0];
+		position[1] = min[1];
+		long offset = 0;
+		for (int d = inputImg.numDimensions() - 1; d >= 0; --d)
+			offset = offset * inputImg.dimension(d) + position[d] - inputImg.min(d);
+		final int stride = (int)inputImg.dimension(0);
+
+		final Object data = ((ArrayDataAccess<?>)inputImg.update(null)).getCurrentStorageArray();
+		if (data instanceof float[]) {
+			for (int y = 0, i = (int)offset, j = 0; y < height; ++y, i += stride, j += width)
+				System.arraycopy(data, i, pixels, j, width);
+		} else {
+			final T t = inputImg.createLinkedType();
+			t.updateContainer(null);
+			for (int y = 0, i = (int)offset, j = 0; y < height; ++y, i += stride)
+				for (int x = 0; x < width; ++x, ++j) {
+					t.index().set(i + x);
+					pixels[j] = t.getRealFloat();
+				}
+		}
+	}
+
+	/**
+	 * Write the clamped center of the {@link FloatProcessor} into the output
+	 * slice.  Writes directly into the storage array of the output if it is
+	 * backed by a single flat array.
+	 */
+	private void copyOutput(
+			final FloatProcessor fp,
+			final RandomAccessibleInterval<T> output,
+			final RandomAccessibleInterval<T> outputSlice,
+			final long[] slicePosition) {
+
+		final float[] pixels = (float[])fp.getPixels();
+		final int fpWidth = fp.getWidth();
+		final int width = (int)outputSlice.dimension(0);
+		final int height = (int)outputSlice.dimension(1);
+
+		final NativeImg<T, ?> outputImg = flatArrayImg(output);
+		if (outputImg == null) {
+			final Cursor<T> cursor = Views.flatIterable(outputSlice).cursor();
+			for (int y = 0, j = padding * fpWidth + padding; y < height; ++y, j += fpWidth)
+				for (int x = 0; x < width; ++x)
+					cursor.next().setReal(Math.min(maxIntensity, Math.max(minIntensity, pixels[j + x])));
+			return;
+		}
+
+		long offset = 0;
+		for (int d = output.numDimensions() - 1; d >= 2; --d)
+			offset = offset * output.dimension(d) + slicePosition[d] - output.min(d);
+		offset *= (long)width * height;
+
+		final T t = outputImg.createLinkedType();
+		t.updateContainer(null);
+		for (int y = 0, i = (int)offset, j = padding * fpWidth + padding; y < height; ++y, j += fpWidth)
+			for (int x = 0; x < width; ++x, ++i) {
+				t.index().set(i);
+				t.setReal(Math.min(maxIntensity, Math.max(minIntensity, pixels[j + x])));
+			}
+	}
+
+	private void filterSlice(
+			final RandomAccessibleInterval<FloatType> inputInterval,
+			final RandomAccessibleInterval<T> output,
+			final long[] min,
+			final long[] max,
+			final long[] slicePosition) {
+
+		/* slice */
+		RandomAccessibleInterval<FloatType> inputSlice = inputInterval;
+		RandomAccessibleInterval<T> outputSlice = output;
+		for (int i = output.numDimensions() - 1; i >= 2; --i) {
+			inputSlice = Views.hyperSlice(inputSlice, i, slicePosition[i]);
+			outputSlice = Views.hyperSlice(outputSlice, i, slicePosition[i]);
+		}
+
+		/* copy into this thread's FloatProcessor */
+		final FloatProcessor fp = floatProcessor((int)inputSlice.dimension(0), (int)inputSlice.dimension(1));
+		copyInput(inputSlice, min, max, slicePosition, fp);
+		fp.setMinAndMax(minIntensity, maxIntensity);
+
+		/* do the work */
+		sliceFilter.accept(fp);
+
+		/* clamp and copy back to output block */
+		copyOutput(fp, output, outputSlice, slicePosition);
+	}
+
 	@Override
 	public void accept(final RandomAccessibleInterval<T> output) {
 
-		final T type = net.imglib2.util.Util.getTypeFromInterval(output).createVariable();
 		final int n = output.numDimensions();
 		final long[] min = Intervals.minAsLongArray(output);
 		final long[] max = Intervals.maxAsLongArray(output);
@@ -84,39 +274,13 @@ public class ImageJStackOp<T extends RealType<T> & NativeType<T>> implements Con
 				min,
 				max);
 
-		RandomAccessibleInterval<FloatType> inputSlice = inputInterval;
-		RandomAccessibleInterval<T> outputSlice = output;
+		/* collect slicePositions */
+		final ArrayList<long[]> slicePositions = new ArrayList<>();
 		final long[] slicePosition = min.clone();
+		for (int d = 2; d <= n;) {
 
-		for (int d = 2; d < n;) {
-
-			/* slice */
-			for (int i = n - 1; i >= 2; --i) {
-				inputSlice = Views.hyperSlice(inputInterval, i, slicePosition[i]);
-				outputSlice = Views.hyperSlice(output, i, slicePosition[i]);
-			}
+			slicePositions.add(slicePosition.clone());
 
-			/* make FloatProcessor copy */
-			final FloatProcessor fp = Util.materialize(inputSlice);
-			fp.setMinAndMax(minIntensity, maxIntensity);
-			final ImagePlus imp = new ImagePlus("", fp);
-
-			/* do the work */
-			sliceFilter.accept(fp);
-
-			/* copy convert back to output block */
-			Util.copy(
-					Views.translate(
-							Converters.convert(
-									(RandomAccessibleInterval<T>)ImagePlusImgs.from(imp),
-									(a, b) -> {
-										b.setReal(Math.min(maxIntensity, Math.max(minIntensity, a.getRealFloat())));
-									},
-									type),
-							Arrays.copyOf(min, 2)),
-					outputSlice);
-
-			/* increase slicePositions */
 			for (d = 2; d < n; ++d) {
 				++slicePosition[d];
 				if (slicePosition[d] <= max[d])
@@ -124,7 +288,26 @@ public class ImageJStackOp<T extends RealType<T> & NativeType<T>> implements Con
 				else
 					slicePosition[d] = min[d];
 			}
+			if (d == n)
+				break;
+		}
+
+		if (exec == null || slicePositions.size() < 2) {
+			for (final long[] position : slicePositions)
+				filterSlice(inputInterval, output, min, max, position);
+		} else {
+			final ArrayList<Future<?>> futures = new ArrayList<>();
+			for (final long[] position : slicePositions)
+				futures.add(exec.submit(() -> filterSlice(inputInterval, output, min, max, position)));
+			try {
+				for (final Future<?> future : futures)
+					future.get();
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			} catch (final ExecutionException e) {
+				throw new RuntimeException(e.getCause());
+			}
 		}
 	}
 }
-
@@ -33,6 +33,7 @@ package org.janelia.saalfeldlab.i2k2020.ops;
 import java.util.concurrent.Executors;
 import java.util.function.Consumer;
 
+import org.janelia.saalfeldlab.i2k2020.util.RecursiveGauss;
 import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
 
@@ -45,9 +46,14 @@ import net.imglib2.algorithm.gauss3.SeparableSymmetricConvolution;
 import net.imglib2.exception.IncompatibleTypeException;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.NumericType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Util;
 
 /**
- * Simple Gaussian filter Op
+ * Simple Gaussian filter Op.  If the type is a {@link RealType} and all
+ * non-zero sigmas are &gt;= a threshold, a recursive Gaussian with constant
+ * cost per pixel is used instead of the FIR kernel, see
+ * {@link RecursiveGauss}.
  *
  * @author Stephan Saalfeld
  * @author Christian Dietz (University of Konstanz)
@@ -58,19 +64,56 @@ public class SimpleGaussRA<T extends NumericType<T> & NativeType<T>> extends
 	AbstractUnaryComputerOp<RandomAccessible<T>, RandomAccessibleInterval<T>>
 	implements Ops.Filter.Gauss, Consumer<RandomAccessibleInterval<T>> {
 
+	/**
+	 * Smallest sigma for which the recursive Gaussian is used by default.
+	 * Below this, the FIR kernel is short enough to be faster.
+	 */
+	public static final double DEFAULT_RECURSIVE_SIGMA_THRESHOLD = 3.0;
+
 	@Parameter
 	final private double[] sigmas;
 
-	public SimpleGaussRA(final double[] sigmas) {
+	@Parameter(required = false)
+	private double recursiveSigmaThreshold = DEFAULT_RECURSIVE_SIGMA_THRESHOLD;
+
+	public SimpleGaussRA(final double[] sigmas, final double recursiveSigmaThreshold) {
 
 		this.sigmas = sigmas;
+		this.recursiveSigmaThreshold = recursiveSigmaThreshold;
+	}
+
+	public SimpleGaussRA(final double[] sigmas) {
+
+		this(sigmas, DEFAULT_RECURSIVE_SIGMA_THRESHOLD);
 	}
 
+	private boolean isRecursive(final T type) {
+
+		if (!(type instanceof RealType))
+			return false;
+
+		boolean isRecursive = false;
+		for (final double sigma : sigmas) {
+			if (sigma > 0) {
+				if (sigma < recursiveSigmaThreshold)
+					return false;
+				isRecursive = true;
+			}
+		}
+		return isRecursive;
+	}
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
 	@Override
 	public void compute(
 			final RandomAccessible<T> input,
 			final RandomAccessibleInterval<T> output) {
 
+		if (isRecursive(Util.getTypeFromInterval(output))) {
+			RecursiveGauss.convolve(sigmas, (RandomAccessible)input, (RandomAccessibleInterval)output);
+			return;
+		}
+
 		try {
 			SeparableSymmetricConvolution.convolve(
 					Gauss3.halfkernels(sigmas),
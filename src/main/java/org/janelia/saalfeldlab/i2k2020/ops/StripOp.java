@@ -0,0 +1,96 @@
+package org.janelia.saalfeldlab.i2k2020.ops;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+import org.janelia.saalfeldlab.i2k2020.util.Lazy;
+import org.janelia.saalfeldlab.i2k2020.util.Util;
+
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.basictypeaccess.AccessFlags;
+import net.imglib2.type.NativeType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * A cell loader that serves cells from full-width x-y strips that are
+ * generated once by another cell loader, e.g. an {@link ImageJStackOp}.
+ *
+ * Slice filters with a large radius, like CLAHE or CLLCN with
+ * blockRadius 1023 around 256&times;256 cells, process a padded area that
+ * is much larger than the cell itself, and neighboring cells redo almost
+ * the same work.  With strips, the padding is computed once per strip
+ * instead of once per cell, and all cells that overlap a strip copy their
+ * data from it.  The strips are kept in a soft reference cache.  A strip
+ * height that is not smaller than the height of the interval processes
+ * whole slices.
+ *
+ * @author Stephan Saalfeld
+ * @param <T> type of the output
+ */
+public class StripOp<T extends NativeType<T>> implements Consumer<RandomAccessibleInterval<T>> {
+
+	final Interval interval;
+	final int stripHeight;
+	final Consumer<RandomAccessibleInterval<T>> op;
+	final RandomAccessible<T> strips;
+
+	/**
+	 *
+	 * @param interval the interval covered by the strips, cells that are
+	 *     not contained in this interval are passed to op directly
+	 * @param stripHeight
+	 * @param type
+	 * @param op the cell loader that generates strips
+	 */
+	public StripOp(
+			final Interval interval,
+			final int stripHeight,
+			final T type,
+			final Consumer<RandomAccessibleInterval<T>> op) {
+
+		this.interval = interval;
+		this.op = op;
+		this.stripHeight = (int)Math.min(stripHeight, interval.dimension(1));
+
+		final int n = interval.numDimensions();
+		final int[] stripSize = new int[n];
+		Arrays.fill(stripSize, 1);
+		stripSize[0] = (int)interval.dimension(0);
+		stripSize[1] = this.stripHeight;
+
+		final long[] min = Intervals.minAsLongArray(interval);
+		final boolean zeroMin = Arrays.stream(min).allMatch(x -> x == 0);
+
+		/* Lazy generates zero-min images, translate the strips into place */
+		final RandomAccessibleInterval<T> zeroMinStrips = Lazy.generate(
+				interval,
+				stripSize,
+				type.createVariable(),
+				AccessFlags.setOf(),
+				zeroMin ? op : strip -> op.accept(Views.translate(strip, min)));
+
+		strips = zeroMin ? zeroMinStrips : Views.translate(zeroMinStrips, min);
+	}
+
+	public Interval getInterval() {
+
+		return interval;
+	}
+
+	public int getStripHeight() {
+
+		return stripHeight;
+	}
+
+	@Override
+	public void accept(final RandomAccessibleInterval<T> cell) {
+
+		if (Intervals.contains(interval, cell))
+			Util.copy(strips, cell);
+		else
+			op.accept(cell);
+	}
+}
@@ -30,24 +30,28 @@
 
 package org.janelia.saalfeldlab.i2k2020.ops;
 
-import java.util.concurrent.Executors;
+import java.util.Arrays;
 import java.util.function.Consumer;
 
+import org.janelia.saalfeldlab.i2k2020.util.Lines;
+
 import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
 import net.imglib2.Interval;
 import net.imglib2.Localizable;
 import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.algorithm.gauss3.Gauss3;
-import net.imglib2.algorithm.gauss3.SeparableSymmetricConvolution;
-import net.imglib2.exception.IncompatibleTypeException;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.view.Views;
 
 /**
- * Simple Gaussian filter Op
+ * Weighted Gaussian filter Op.  Numerator (source * weight) and denominator
+ * (weight) are convolved together in one line-buffered pass per dimension
+ * over a flat double copy of the padded block, the division happens when
+ * the center is copied into the output.
  *
  * @author Stephan Saalfeld
  * @author Stephan Preibisch
@@ -55,72 +59,141 @@ import net.imglib2.view.Views;
  */
 public class WeightedGaussRA<T extends RealType<T> & NativeType<T>> implements Consumer<RandomAccessibleInterval<T>>
 {
-	final T type;
 	final private double[] sigmas;
 	final private RandomAccessible<T> source, weight;
-	final RandomAccessibleInterval<T> sourceTmp, weightTmp;
 
 	public WeightedGaussRA(
 			final RandomAccessible<T> source,
 			final RandomAccessible<T> weight,
-			final RandomAccessibleInterval<T> sourceTmp,
-			final RandomAccessibleInterval<T> weightTmp,
-			final T type,
 			final double[] sigmas)
 	{
 		this.source = source;
 		this.weight = weight;
-		this.sourceTmp = sourceTmp;
-		this.weightTmp = weightTmp;
-		this.type = type;
 		this.sigmas = sigmas;
 	}
 
+	/**
+	 * @deprecated sourceTmp, weightTmp, and type are not used anymore, use
+	 *     {@link #WeightedGaussRA(RandomAccessible, RandomAccessible, double[])}
+	 */
+	@Deprecated
+	public WeightedGaussRA(
+			final RandomAccessible<T> source,
+			final RandomAccessible<T> weight,
+			final RandomAccessibleInterval<T> sourceTmp,
+			final RandomAccessibleInterval<T> weightTmp,
+			final T type,
+			final double[] sigmas)
+	{
+		this(source, weight, sigmas);
+	}
+
+	/**
+	 * Convolve a line with a symmetric half-kernel, only the center
+	 * (excluding kernel.length - 1 pixels on either side) is written.
+	 */
+	private static void convolveLine(
+			final double[] line,
+			final double[] target,
+			final int length,
+			final double[] kernel)
+	{
+		final int k1 = kernel.length - 1;
+		for ( int i = k1; i < length - k1; ++i )
+		{
+			double sum = kernel[ 0 ] * line[ i ];
+			for ( int j = 1; j <= k1; ++j )
+				sum += kernel[ j ] * ( line[ i - j ] + line[ i + j ] );
+			target[ i ] = sum;
+		}
+	}
+
 	@Override
 	public void accept(final RandomAccessibleInterval<T> output)
 	{
-		try
+		final double[][] kernels = Gauss3.halfkernels( sigmas );
+
+		final int n = output.numDimensions();
+		final int[] halo = new int[ n ];
+		final int[] dimensions = new int[ n ];
+		final long[] min = new long[ n ];
+		final long[] max = new long[ n ];
+		for ( int d = 0; d < n; ++d )
 		{
-			final WeightedRandomAccessible< T > weightedSource = new WeightedRandomAccessible< T >( source, weight, type );
-
-			SeparableSymmetricConvolution.convolve(
-					Gauss3.halfkernels(sigmas),
-					weightedSource,
-					sourceTmp,
-					Executors.newSingleThreadExecutor());
-
-			SeparableSymmetricConvolution.convolve(
-					Gauss3.halfkernels(sigmas),
-					weight,
-					weightTmp,
-					Executors.newSingleThreadExecutor());
-
-			final Cursor< T > i = Views.flatIterable( Views.interval( source, sourceTmp ) ).cursor();
-			final Cursor< T > s = Views.flatIterable( sourceTmp ).cursor();
-			final Cursor< T > w = Views.flatIterable( weightTmp ).cursor();
-			final Cursor< T > o = Views.flatIterable( output ).cursor();
-
-			while ( o.hasNext() )
-			{
-				final double weight = w.next().getRealDouble();
+			halo[ d ] = kernels[ d ].length - 1;
+			dimensions[ d ] = ( int )output.dimension( d ) + 2 * halo[ d ];
+			min[ d ] = output.min( d ) - halo[ d ];
+			max[ d ] = output.max( d ) + halo[ d ];
+		}
+
+		/* read source and weight once, store source * weight and weight */
+		final int size = Lines.size( dimensions );
+		final double[] numerator = new double[ size ];
+		final double[] denominator = new double[ size ];
+		final FinalInterval paddedInterval = new FinalInterval( min, max );
+		final Cursor< T > s = Views.flatIterable( Views.interval( source, paddedInterval ) ).cursor();
+		final Cursor< T > w = Views.flatIterable( Views.interval( weight, paddedInterval ) ).cursor();
+		for ( int i = 0; i < size; ++i )
+		{
+			final double wi = w.next().getRealDouble();
+			numerator[ i ] = s.next().getRealDouble() * wi;
+			denominator[ i ] = wi;
+		}
 
-				if ( weight == 0 )
+		/* convolve both channels together, only lines that contribute to the output */
+		final int[] lineMin = new int[ n ];
+		final int[] lineMax = new int[ n ];
+		for ( int d = 0; d < n; ++d )
+			lineMax[ d ] = dimensions[ d ] - 1;
+
+		final int maxLength = Arrays.stream( dimensions ).max().getAsInt();
+		final double[] numeratorLine = new double[ maxLength ];
+		final double[] denominatorLine = new double[ maxLength ];
+		final double[] numeratorResult = new double[ maxLength ];
+		final double[] denominatorResult = new double[ maxLength ];
+		for ( int d = 0; d < n; ++d )
+		{
+			final double[] kernel = kernels[ d ];
+			final int stride = Lines.stride( dimensions, d );
+			final int length = dimensions[ d ];
+			final int from = halo[ d ];
+			final int to = length - halo[ d ];
+			Lines.forEachLine( dimensions, d, lineMin, lineMax, offset -> {
+				for ( int i = 0, j = offset; i < length; ++i, j += stride )
 				{
-					o.next().set( i.next() );
-					s.fwd();
+					numeratorLine[ i ] = numerator[ j ];
+					denominatorLine[ i ] = denominator[ j ];
+				}
+				convolveLine( numeratorLine, numeratorResult, length, kernel );
+				convolveLine( denominatorLine, denominatorResult, length, kernel );
+				for ( int i = from, j = offset + from * stride; i < to; ++i, j += stride )
+				{
+					numerator[ j ] = numeratorResult[ i ];
+					denominator[ j ] = denominatorResult[ i ];
 				}
+			} );
+
+			lineMin[ d ] = halo[ d ];
+			lineMax[ d ] = dimensions[ d ] - halo[ d ] - 1;
+		}
+
+		/* divide into output, pass through source where the weights sum up to 0 */
+		final Cursor< T > i = Views.flatIterable( Views.interval( source, output ) ).cursor();
+		final Cursor< T > o = Views.flatIterable( output ).cursor();
+		final int width = ( int )output.dimension( 0 );
+		Lines.forEachLine( dimensions, 0, lineMin, lineMax, offset -> {
+			for ( int j = offset + halo[ 0 ], k = 0; k < width; ++j, ++k )
+			{
+				final double weightSum = denominator[ j ];
+				if ( weightSum == 0 )
+					o.next().set( i.next() );
 				else
 				{
-					o.next().setReal( s.next().getRealDouble() / weight );
+					o.next().setReal( numerator[ j ] / weightSum );
 					i.fwd();
 				}
 			}
-
-		}
-		catch (final IncompatibleTypeException e)
-		{
-			throw new RuntimeException(e);
-		}
+		} );
 	}
 
 	public static class WeightedRandomAccessible< T extends RealType< T > > implements RandomAccessible< T >
@@ -0,0 +1,302 @@
+package org.janelia.saalfeldlab.i2k2020.util;
+
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.cache.img.CellLoader;
+import net.imglib2.cache.img.SingleCellArrayImg;
+import net.imglib2.img.basictypeaccess.AccessFlags;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.type.NativeType;
+
+/**
+ * A JVM-wide, size-bounded LRU cache of decoded N5 {@link DataBlock
+ * DataBlocks}, keyed by container URL, dataset, and grid position.  All
+ * tasks on a Spark executor share the same instance, so halos that
+ * adjacent tasks read from the same input are decoded only once.
+ *
+ * Use {@link #open(N5Reader, String, String, LongAdder, LongAdder)} to get
+ * a cached cell image whose cells are filled from this cache and that
+ * counts hits and misses, e.g. to report them through Spark accumulators.
+ *
+ * @author Stephan Saalfeld
+ */
+public class BlockCache {
+
+	private static final class Key {
+
+		private final String url;
+		private final String dataset;
+		private final long[] gridPosition;
+		private final int hash;
+
+		public Key(final String url, final String dataset, final long[] gridPosition) {
+
+			this.url = url;
+			this.dataset = dataset;
+			this.gridPosition = gridPosition;
+			hash = Objects.hash(url, dataset, Arrays.hashCode(gridPosition));
+		}
+
+		@Override
+		public int hashCode() {
+
+			return hash;
+		}
+
+		@Override
+		public boolean equals(final Object o) {
+
+			if (!(o instanceof Key))
+				return false;
+			final Key other = (Key)o;
+			return
+					url.equals(other.url) &&
+					dataset.equals(other.dataset) &&
+					Arrays.equals(gridPosition, other.gridPosition);
+		}
+	}
+
+	/**
+	 * A {@link CellLoader} that fills cells with {@link DataBlock DataBlocks}
+	 * from the {@link BlockCache}.  Cells must match the blocks of the
+	 * dataset.
+	 *
+	 * @param <T>
+	 */
+	public static class Loader<T extends NativeType<T>> implements CellLoader<T> {
+
+		private final N5Reader n5;
+		private final String url;
+		private final String dataset;
+		private final DatasetAttributes attributes;
+		private final LongAdder hits;
+		private final LongAdder misses;
+
+		public Loader(
+				final N5Reader n5,
+				final String url,
+				final String dataset,
+				final DatasetAttributes attributes,
+				final LongAdder hits,
+				final LongAdder misses) {
+
+			this.n5 = n5;
+			this.url = url;
+			this.dataset = dataset;
+			this.attributes = attributes;
+			this.hits = hits;
+			this.misses = misses;
+		}
+
+		@Override
+		public void load(final SingleCellArrayImg<T, ?> cell) throws IOException {
+
+			final int[] blockSize = attributes.getBlockSize();
+			final long[] gridPosition = new long[cell.numDimensions()];
+			for (int d = 0; d < gridPosition.length; ++d)
+				gridPosition[d] = cell.min(d) / blockSize[d];
+
+			final Key key = new Key(url, dataset, gridPosition);
+			DataBlock<?> block = getInstance().get(key);
+			if (block == null) {
+				misses.increment();
+				block = n5.readBlock(dataset, attributes, gridPosition);
+				if (block == null)
+					return;
+				getInstance().put(key, block);
+			} else
+				hits.increment();
+
+			copy(block, cell);
+		}
+	}
+
+	/**
+	 * Copy a {@link DataBlock} into a cell of the same grid position.  The
+	 * block can be larger than the cell, e.g. Zarr edge chunks are not
+	 * truncated.
+	 *
+	 * @param block
+	 * @param cell
+	 */
+	static void copy(final DataBlock<?> block, final SingleCellArrayImg<?, ?> cell) {
+
+		final Object data = block.getData();
+		final Object storage = ((ArrayDataAccess<?>)cell.update(null)).getCurrentStorageArray();
+		final int[] size = block.getSize();
+		final int[] cellSize = new int[size.length];
+		for (int d = 0; d < size.length; ++d)
+			cellSize[d] = (int)cell.dimension(d);
+
+		if (Arrays.equals(size, cellSize))
+			System.arraycopy(data, 0, storage, 0, Array.getLength(storage));
+		else {
+			/* copy line by line */
+			final int[] min = new int[size.length];
+			final int[] max = new int[size.length];
+			for (int d = 0; d < size.length; ++d)
+				max[d] = Math.min(size[d], cellSize[d]) - 1;
+			final int width = max[0] + 1;
+			Lines.forEachLine(size, 0, min, max, offset -> {
+				int cellOffset = 0;
+				for (int d = 0, rest = offset, stride = 1; d < size.length; ++d) {
+					cellOffset += rest % size[d] * stride;
+					rest /= size[d];
+					stride *= cellSize[d];
+				}
+				System.arraycopy(data, offset, storage, cellOffset, width);
+			});
+		}
+	}
+
+	private static final BlockCache instance = new BlockCache(Runtime.getRuntime().maxMemory() / 4);
+
+	private final LinkedHashMap<Key, DataBlock<?>> blocks = new LinkedHashMap<>(16, 0.75f, true);
+	private long maxBytes;
+	private long bytes = 0;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+
+	private BlockCache(final long maxBytes) {
+
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * @return the JVM-wide instance, by default bounded to 1/4 of the
+	 *     maximum heap size
+	 */
+	public static BlockCache getInstance() {
+
+		return instance;
+	}
+
+	private static long sizeInBytes(final DataBlock<?> block) {
+
+		final Object data = block.getData();
+		final Class<?> componentType = data.getClass().getComponentType();
+		final int bytesPerElement;
+		if (componentType == byte.class)
+			bytesPerElement = 1;
+		else if (componentType == short.class)
+			bytesPerElement = 2;
+		else if (componentType == int.class || componentType == float.class)
+			bytesPerElement = 4;
+		else
+			bytesPerElement = 8;
+		return (long)Array.getLength(data) * bytesPerElement;
+	}
+
+	private void evict() {
+
+		final Iterator<Entry<Key, DataBlock<?>>> iterator = blocks.entrySet().iterator();
+		while (bytes > maxBytes && iterator.hasNext()) {
+			bytes -= sizeInBytes(iterator.next().getValue());
+			iterator.remove();
+		}
+	}
+
+	public synchronized void setMaxBytes(final long maxBytes) {
+
+		this.maxBytes = maxBytes;
+		evict();
+	}
+
+	public synchronized long getMaxBytes() {
+
+		return maxBytes;
+	}
+
+	public synchronized long getBytes() {
+
+		return bytes;
+	}
+
+	/**
+	 * @return total hits of this JVM
+	 */
+	public long getHits() {
+
+		return hits.sum();
+	}
+
+	/**
+	 * @return total misses of this JVM
+	 */
+	public long getMisses() {
+
+		return misses.sum();
+	}
+
+	private synchronized DataBlock<?> get(final Key key) {
+
+		final DataBlock<?> block = blocks.get(key);
+		if (block == null)
+			misses.increment();
+		else
+			hits.increment();
+		return block;
+	}
+
+	private synchronized void put(final Key key, final DataBlock<?> block) {
+
+		final DataBlock<?> previous = blocks.put(key, block);
+		if (previous != null)
+			bytes -= sizeInBytes(previous);
+		bytes += sizeInBytes(block);
+		evict();
+	}
+
+	public synchronized void clear() {
+
+		blocks.clear();
+		bytes = 0;
+	}
+
+	/**
+	 * Open an N5 dataset as a {@link CachedCellImg} whose cells are loaded
+	 * through the JVM-wide {@link BlockCache}.
+	 *
+	 * @param <T>
+	 * @param n5
+	 * @param url the URL of the container, part of the cache key
+	 * @param dataset
+	 * @param hits counts cells that were served from the cache
+	 * @param misses counts cells that were read from n5
+	 * @return
+	 * @throws IOException
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T extends NativeType<T>> CachedCellImg<T, ?> open(
+			final N5Reader n5,
+			final String url,
+			final String dataset,
+			final LongAdder hits,
+			final LongAdder misses) throws IOException {
+
+		final DatasetAttributes attributes = n5.getDatasetAttributes(dataset);
+		final T type = (T)N5Utils.type(attributes.getDataType());
+
+		return Lazy.createImg(
+				new FinalInterval(attributes.getDimensions()),
+				attributes.getBlockSize(),
+				type,
+				AccessFlags.setOf(),
+				new Loader<>(n5, url, dataset, attributes, hits, misses));
+	}
+}
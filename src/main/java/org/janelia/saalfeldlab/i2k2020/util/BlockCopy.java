@@ -0,0 +1,389 @@
+package org.janelia.saalfeldlab.i2k2020.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.janelia.saalfeldlab.n5.Compression;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.GsonKeyValueN5Reader;
+import org.janelia.saalfeldlab.n5.GsonKeyValueN5Writer;
+import org.janelia.saalfeldlab.n5.KeyValueAccess;
+import org.janelia.saalfeldlab.n5.LockedChannel;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5KeyValueReader;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.N5URI;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.NativeType;
+import net.imglib2.view.Views;
+
+/**
+ * Copy a crop of a dataset into an N5 or Zarr container without decoding
+ * blocks that do not change.  If the crop starts at a block boundary and
+ * the output has the same block size and compression as the input, every
+ * output block that covers the same voxels as an input block is copied as
+ * the compressed payload, byte for byte, and only the block header is
+ * rewritten: N5 blocks start with a header with the block size, Zarr chunks
+ * have no header, are padded to the full chunk size, and their keys list
+ * the grid position in reverse order.  All other blocks, i.e. blocks at the
+ * crop edges that cut through input blocks, are decoded and encoded like
+ * with {@link N5Utils#save}.
+ *
+ * The payloads of N5 and Zarr are identical for uncompressed, gzip (and
+ * zlib), and blosc blocks of big-endian data, so those are the only
+ * compressions that are copied between N5 and Zarr.  N5 to N5 and Zarr to
+ * Zarr copies work with all compressions.  Containers that are not N5 or
+ * Zarr key value stores, e.g. HDF5, are always decoded and encoded.
+ *
+ * @author Stephan Saalfeld
+ */
+public interface BlockCopy {
+
+	public static enum Format {N5, ZARR, OTHER}
+
+	/**
+	 * Compressions whose payload is the same in N5 and Zarr.
+	 */
+	public static final String[] PORTABLE_COMPRESSIONS = {"raw", "gzip", "blosc"};
+
+	/**
+	 * Keys of .zarray that must match to copy Zarr chunks byte for byte.
+	 */
+	public static final String[] ZARRAY_CODEC_KEYS = {"compressor", "dtype", "order", "filters", "fill_value"};
+
+	/**
+	 * @param n5
+	 * @param dataset
+	 * @return the format of the container
+	 */
+	public static Format format(final N5Reader n5, final String dataset) {
+
+		if (n5 instanceof N5KeyValueReader)
+			return Format.N5;
+		if (n5 instanceof GsonKeyValueN5Reader && zarray(n5, dataset) != null)
+			return Format.ZARR;
+		return Format.OTHER;
+	}
+
+	/**
+	 * Read the .zarray metadata of a Zarr array.
+	 *
+	 * @param n5
+	 * @param dataset
+	 * @return the metadata or null if it does not exist
+	 */
+	public static JsonObject zarray(final N5Reader n5, final String dataset) {
+
+		final KeyValueAccess kva = ((GsonKeyValueN5Reader)n5).getKeyValueAccess();
+		final String path = kva.compose(n5.getURI(), N5URI.normalizeGroupPath(dataset), ".zarray");
+		if (!kva.isFile(path))
+			return null;
+		try (
+				final LockedChannel channel = kva.lockForReading(path);
+				final Reader reader = channel.newReader()) {
+			return new Gson().fromJson(reader, JsonObject.class);
+		} catch (final IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Whether the blocks of a dataset can be copied byte for byte into a
+	 * dataset of another container.  Both datasets must have the same block
+	 * size.
+	 *
+	 * @param in
+	 * @param inDataset
+	 * @param out
+	 * @param outDataset
+	 * @return
+	 */
+	public static boolean isCopyable(
+			final N5Reader in,
+			final String inDataset,
+			final N5Reader out,
+			final String outDataset) {
+
+		final Format inFormat = format(in, inDataset);
+		final Format outFormat = format(out, outDataset);
+		if (inFormat == Format.OTHER || outFormat == Format.OTHER)
+			return false;
+
+		final DatasetAttributes inAttributes = in.getDatasetAttributes(inDataset);
+		final DatasetAttributes outAttributes = out.getDatasetAttributes(outDataset);
+		if (
+				!Arrays.equals(inAttributes.getBlockSize(), outAttributes.getBlockSize()) ||
+				inAttributes.getDataType() != outAttributes.getDataType())
+			return false;
+
+		if (inFormat == Format.N5 && outFormat == Format.N5)
+			return inAttributes.getCompression().equals(outAttributes.getCompression());
+
+		final JsonObject inZarray = inFormat == Format.ZARR ? zarray(in, inDataset) : null;
+		final JsonObject outZarray = outFormat == Format.ZARR ? zarray(out, outDataset) : null;
+		if (inZarray != null && outZarray != null) {
+			for (final String key : ZARRAY_CODEC_KEYS)
+				if (!Objects.equals(inZarray.get(key), outZarray.get(key)))
+					return false;
+			return true;
+		}
+
+		/* N5 <-> Zarr, Zarr must be big-endian, C-order, and unfiltered like N5 */
+		final JsonObject zarray = inZarray == null ? outZarray : inZarray;
+		if (
+				zarray.get("dtype").getAsString().startsWith("<") ||
+				!"C".equals(zarray.get("order").getAsString()) ||
+				zarray.has("filters") && !zarray.get("filters").isJsonNull())
+			return false;
+
+		final Compression compression = (inFormat == Format.N5 ? inAttributes : outAttributes).getCompression();
+		return Arrays.asList(PORTABLE_COMPRESSIONS).contains(compression.getType());
+	}
+
+	/**
+	 * Read the encoded bytes of a block as stored.
+	 *
+	 * @param n5
+	 * @param dataset
+	 * @param gridPosition
+	 * @return the bytes or null if the block does not exist
+	 * @throws IOException
+	 */
+	public static byte[] readBytes(
+			final GsonKeyValueN5Reader n5,
+			final String dataset,
+			final long... gridPosition) throws IOException {
+
+		final KeyValueAccess kva = n5.getKeyValueAccess();
+		final String path = n5.absoluteDataBlockPath(N5URI.normalizeGroupPath(dataset), gridPosition);
+		if (!kva.isFile(path))
+			return null;
+
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (
+				final LockedChannel channel = kva.lockForReading(path);
+				final InputStream in = channel.newInputStream()) {
+			final byte[] buffer = new byte[65536];
+			for (int i = in.read(buffer); i >= 0; i = in.read(buffer))
+				bytes.write(buffer, 0, i);
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Strip the header from the stored bytes of a block.
+	 *
+	 * @param bytes
+	 * @param format
+	 * @return the encoded payload or null if this is not a default mode N5
+	 *     block
+	 */
+	public static byte[] payload(final byte[] bytes, final Format format) {
+
+		if (format == Format.ZARR)
+			return bytes;
+
+		/* N5 header: mode, nDim, dimensions, see DefaultBlockReader */
+		final ByteBuffer header = ByteBuffer.wrap(bytes);
+		if (header.getShort() != 0)
+			return null;
+		final int headerSize = 4 + 4 * header.getShort();
+		return Arrays.copyOfRange(bytes, headerSize, bytes.length);
+	}
+
+	/**
+	 * Write the encoded payload of a block, with an N5 block header for N5
+	 * containers.  Blocks in N5 containers on the file system are written
+	 * atomically, see {@link Resume}.
+	 *
+	 * @param n5
+	 * @param dataset
+	 * @param format
+	 * @param blockSize size of the block, i.e. cropped at the end of the
+	 *     dataset, ignored for Zarr
+	 * @param payload
+	 * @param gridPosition
+	 * @throws IOException
+	 */
+	public static void writePayload(
+			final GsonKeyValueN5Writer n5,
+			final String dataset,
+			final Format format,
+			final int[] blockSize,
+			final byte[] payload,
+			final long... gridPosition) throws IOException {
+
+		if (format == Format.N5 && n5 instanceof N5FSWriter) {
+			Resume.writeAtomically(
+					Resume.blockPath(n5, dataset, gridPosition),
+					out -> writePayload(out, format, blockSize, payload));
+			return;
+		}
+
+		final String path = n5.absoluteDataBlockPath(N5URI.normalizeGroupPath(dataset), gridPosition);
+		try (
+				final LockedChannel channel = n5.getKeyValueAccess().lockForWriting(path);
+				final OutputStream out = channel.newOutputStream()) {
+			writePayload(out, format, blockSize, payload);
+		}
+	}
+
+	/**
+	 * Write the encoded payload of a block into a stream, with an N5 block
+	 * header for N5 containers.
+	 *
+	 * @param out
+	 * @param format
+	 * @param blockSize
+	 * @param payload
+	 * @throws IOException
+	 */
+	public static void writePayload(
+			final OutputStream out,
+			final Format format,
+			final int[] blockSize,
+			final byte[] payload) throws IOException {
+
+		if (format == Format.N5) {
+			final DataOutputStream header = new DataOutputStream(out);
+			header.writeShort(0);
+			header.writeShort(blockSize.length);
+			for (final int s : blockSize)
+				header.writeInt(s);
+			header.flush();
+		}
+		out.write(payload);
+	}
+
+	/**
+	 * Whether an output block of a crop covers exactly the voxels of one
+	 * input block, i.e. it can be copied byte for byte.
+	 *
+	 * @param gridBlock output block as created by {@link Grid#create}
+	 * @param cropMin
+	 * @param dimensions of the input
+	 * @param blockSize
+	 * @param padded whether the input or the output pads blocks at the end
+	 *     of the dataset (Zarr)
+	 * @return
+	 */
+	static boolean isAligned(
+			final long[][] gridBlock,
+			final long[] cropMin,
+			final long[] dimensions,
+			final int[] blockSize,
+			final boolean padded) {
+
+		for (int d = 0; d < cropMin.length; ++d) {
+			if (cropMin[d] % blockSize[d] != 0)
+				return false;
+			final long min = cropMin[d] + gridBlock[0][d];
+			final long inSize = Math.min(blockSize[d], dimensions[d] - min);
+			if (gridBlock[1][d] != inSize || padded && inSize != blockSize[d])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Save a crop of a dataset into another container with the block size
+	 * and compression of the input, copying all blocks that cover exactly
+	 * the voxels of one input block byte for byte, see
+	 * {@link #isCopyable(N5Reader, String, N5Reader, String)}.  Blocks that
+	 * would be copied from a missing input block are not written.  When
+	 * resuming, complete blocks are skipped.
+	 *
+	 * @param <T>
+	 * @param in
+	 * @param inDataset
+	 * @param cropMin
+	 * @param cropMax inclusive
+	 * @param out
+	 * @param outDataset
+	 * @param resume
+	 * @param exec
+	 * @return the number of blocks that were copied and the number of
+	 *     blocks that were decoded and encoded
+	 * @throws IOException
+	 * @throws InterruptedException
+	 * @throws ExecutionException
+	 */
+	public static <T extends NativeType<T>> long[] copy(
+			final N5Reader in,
+			final String inDataset,
+			final long[] cropMin,
+			final long[] cropMax,
+			final N5Writer out,
+			final String outDataset,
+			final boolean resume,
+			final ExecutorService exec) throws IOException, InterruptedException, ExecutionException {
+
+		final DatasetAttributes inAttributes = in.getDatasetAttributes(inDataset);
+		final RandomAccessibleInterval<T> crop = Views.zeroMin(
+				Views.interval(N5Utils.<T>open(in, inDataset), cropMin, cropMax));
+		final DatasetAttributes attributes = Resume.createDatasetIfMissing(
+				crop,
+				out,
+				outDataset,
+				inAttributes.getBlockSize(),
+				inAttributes.getCompression());
+
+		final boolean copyable = isCopyable(in, inDataset, out, outDataset);
+		final Format inFormat = format(in, inDataset);
+		final Format outFormat = format(out, outDataset);
+		final boolean padded = inFormat == Format.ZARR || outFormat == Format.ZARR;
+
+		final ArrayList<Future<Boolean>> futures = new ArrayList<>();
+		for (final long[][] gridBlock : Grid.create(attributes.getDimensions(), attributes.getBlockSize())) {
+			futures.add(exec.submit(() -> {
+
+				if (resume && Resume.isComplete(out, outDataset, attributes, gridBlock[2]))
+					return null;
+
+				if (copyable && isAligned(gridBlock, cropMin, inAttributes.getDimensions(), attributes.getBlockSize(), padded)) {
+					final long[] inPosition = new long[gridBlock[2].length];
+					for (int d = 0; d < inPosition.length; ++d)
+						inPosition[d] = gridBlock[2][d] + cropMin[d] / attributes.getBlockSize()[d];
+					final byte[] bytes = readBytes((GsonKeyValueN5Reader)in, inDataset, inPosition);
+					if (bytes == null)
+						return null;
+					final byte[] payload = payload(bytes, inFormat);
+					if (payload != null) {
+						final int[] blockSize = new int[gridBlock[1].length];
+						Arrays.setAll(blockSize, d -> (int)gridBlock[1][d]);
+						writePayload((GsonKeyValueN5Writer)out, outDataset, outFormat, blockSize, payload, gridBlock[2]);
+						return true;
+					}
+				}
+
+				Resume.saveBlock(Views.offsetInterval(crop, gridBlock[0], gridBlock[1]), out, outDataset, attributes, gridBlock[2]);
+				return false;
+			}));
+		}
+
+		final long[] counts = new long[2];
+		for (final Future<Boolean> future : futures) {
+			final Boolean copied = future.get();
+			if (copied != null)
+				++counts[copied ? 0 : 1];
+		}
+		return counts;
+	}
+}
@@ -0,0 +1,238 @@
+package org.janelia.saalfeldlab.i2k2020.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.NativeType;
+import net.imglib2.view.IntervalView;
+import net.imglib2.view.Views;
+
+/**
+ * Single machine alternative to running a block-wise job with Spark.  Takes
+ * the same {@link Grid} blocks and splits them into partitions of
+ * consecutive blocks like {@code JavaSparkContext.parallelize} does.  Each
+ * partition creates its output once with an {@link OpFactory}, exactly like
+ * a Spark partition, and then forks one task per block into a work-stealing
+ * {@link ForkJoinPool}, so idle threads take over blocks of slow
+ * partitions.
+ *
+ * Memory is bounded by a {@link Semaphore} that limits the number of
+ * partitions in flight, i.e. whose op and output exist at the same time.
+ * Partitions are submitted from the calling thread, which takes a permit
+ * before a partition's op is created, and the permit is returned when all
+ * blocks of the partition are written.  Worker threads never block on the
+ * semaphore, so the pool runs with exactly its parallelism.  Blocks are
+ * written with {@link N5Utils#saveNonEmptyBlock}, or with
+ * {@link Resume#saveBlock} when resuming.
+ *
+ * @author Stephan Saalfeld
+ */
+public class BlockExecutor {
+
+	/**
+	 * Creates the zero-min output of an op, typically a {@link Lazy} cached
+	 * cell image, for a partition whose blocks are contained in interval.
+	 *
+	 * @param <T>
+	 */
+	@FunctionalInterface
+	public static interface OpFactory<T> {
+
+		public RandomAccessibleInterval<T> create(final Interval interval) throws Exception;
+	}
+
+	private final ForkJoinPool pool;
+	private final Semaphore partitionsInFlight;
+	private final int blocksPerPartition;
+
+	private final LongAdder blocksSaved = new LongAdder();
+	private volatile boolean failed = false;
+
+	/**
+	 * @param parallelism number of worker threads
+	 * @param maxPartitionsInFlight maximum number of partitions whose op and
+	 *     output exist at the same time
+	 * @param blocksPerPartition number of consecutive grid blocks that share
+	 *     the output created by the {@link OpFactory}
+	 */
+	public BlockExecutor(final int parallelism, final int maxPartitionsInFlight, final int blocksPerPartition) {
+
+		pool = new ForkJoinPool(parallelism);
+		partitionsInFlight = new Semaphore(maxPartitionsInFlight);
+		this.blocksPerPartition = blocksPerPartition;
+	}
+
+	/**
+	 * @return the number of blocks that were saved so far
+	 */
+	public long getBlocksSaved() {
+
+		return blocksSaved.sum();
+	}
+
+	public void shutdown() {
+
+		pool.shutdown();
+	}
+
+	private class BlockTask<T extends NativeType<T>> extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final RandomAccessibleInterval<T> output;
+		private final long[][] gridBlock;
+		private final N5Writer n5;
+		private final String dataset;
+		private final DatasetAttributes attributes;
+		private final boolean resume;
+
+		BlockTask(
+				final RandomAccessibleInterval<T> output,
+				final long[][] gridBlock,
+				final N5Writer n5,
+				final String dataset,
+				final DatasetAttributes attributes,
+				final boolean resume) {
+
+			this.output = output;
+			this.gridBlock = gridBlock;
+			this.n5 = n5;
+			this.dataset = dataset;
+			this.attributes = attributes;
+			this.resume = resume;
+		}
+
+		@Override
+		protected void compute() {
+
+			try {
+				final IntervalView<T> block = Views.offsetInterval(output, gridBlock[0], gridBlock[1]);
+				if (resume)
+					Resume.saveBlock(block, n5, dataset, attributes, gridBlock[2]);
+				else
+					N5Utils.saveNonEmptyBlock(block, n5, dataset, gridBlock[2], net.imglib2.util.Util.getTypeFromInterval(block).createVariable());
+				blocksSaved.increment();
+			} catch (final Exception e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	private class PartitionTask<T extends NativeType<T>> extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final List<long[][]> gridBlocks;
+		private final OpFactory<T> opFactory;
+		private final N5Writer n5;
+		private final String dataset;
+		private final DatasetAttributes attributes;
+		private final boolean resume;
+
+		PartitionTask(
+				final List<long[][]> gridBlocks,
+				final OpFactory<T> opFactory,
+				final N5Writer n5,
+				final String dataset,
+				final DatasetAttributes attributes,
+				final boolean resume) {
+
+			this.gridBlocks = gridBlocks;
+			this.opFactory = opFactory;
+			this.n5 = n5;
+			this.dataset = dataset;
+			this.attributes = attributes;
+			this.resume = resume;
+		}
+
+		/**
+		 * The permit of this partition was taken by the submitting thread.
+		 */
+		@Override
+		protected void compute() {
+
+			try {
+				final RandomAccessibleInterval<T> output;
+				try {
+					output = opFactory.create(Grid.boundingBox(gridBlocks));
+				} catch (final Exception e) {
+					throw new RuntimeException(e);
+				}
+
+				final ArrayList<BlockTask<T>> tasks = new ArrayList<>();
+				for (final long[][] gridBlock : gridBlocks)
+					tasks.add(new BlockTask<>(output, gridBlock, n5, dataset, attributes, resume));
+				invokeAll(tasks);
+			} catch (final RuntimeException | Error e) {
+				failed = true;
+				throw e;
+			} finally {
+				partitionsInFlight.release();
+			}
+		}
+	}
+
+	/**
+	 * Process and save grid blocks.  The dataset must exist.  When resuming,
+	 * blocks that are complete are skipped and all other blocks, including
+	 * empty ones, are saved atomically.
+	 *
+	 * @param <T>
+	 * @param grid as created by {@link Grid#create}
+	 * @param opFactory
+	 * @param n5
+	 * @param dataset
+	 * @param resume
+	 * @throws Exception
+	 */
+	public <T extends NativeType<T>> void run(
+			final List<long[][]> grid,
+			final OpFactory<T> opFactory,
+			final N5Writer n5,
+			final String dataset,
+			final boolean resume) throws Exception {
+
+		final DatasetAttributes attributes = n5.getDatasetAttributes(dataset);
+		final List<long[][]> blocks = resume ? Resume.missing(n5, dataset, grid) : grid;
+
+		/* bounded submission, stop submitting after the first failure */
+		failed = false;
+		final ArrayList<ForkJoinTask<?>> partitions = new ArrayList<>();
+		for (int i = 0; i < blocks.size(); i += blocksPerPartition) {
+			partitionsInFlight.acquire();
+			if (failed) {
+				partitionsInFlight.release();
+				break;
+			}
+			partitions.add(
+					pool.submit(
+							new PartitionTask<>(
+									blocks.subList(i, Math.min(blocks.size(), i + blocksPerPartition)),
+									opFactory,
+									n5,
+									dataset,
+									attributes,
+									resume)));
+		}
+
+		for (final ForkJoinTask<?> partition : partitions) {
+			try {
+				partition.get();
+			} catch (final ExecutionException e) {
+				throw new RuntimeException(e.getCause());
+			}
+		}
+	}
+}
@@ -0,0 +1,325 @@
+package org.janelia.saalfeldlab.i2k2020.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.DefaultBlockWriter;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Writer;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.NativeType;
+
+/**
+ * A block-wise read &rarr; compute &rarr; encode &rarr; write pipeline.
+ * Each stage has its own thread pool and passes blocks to the next stage
+ * through a bounded queue.  Stages block when the queue to the next stage
+ * is full, so disk, CPU, and network work overlap while the number of
+ * blocks in memory is capped by the queue sizes.  The queue depths and the
+ * time spent in each stage show which stage is the bottleneck: queues in
+ * front of the bottleneck are full, queues behind it are empty.
+ *
+ * Only N5 containers on the file system accept pre-encoded blocks and are
+ * written atomically.  For other backends, the write stage encodes in
+ * {@link N5Writer#writeBlock}.
+ *
+ * @param <I> the input of the compute stage, e.g. an input block with halo
+ * @param <T> the output type
+ *
+ * @author Stephan Saalfeld
+ */
+public class BlockPipeline<I, T extends NativeType<T>> {
+
+	/**
+	 * Reads the input for a grid block.
+	 */
+	@FunctionalInterface
+	public static interface Reader<I> {
+
+		public I read(final long[][] gridBlock) throws Exception;
+	}
+
+	/**
+	 * Computes a grid block from its input.  The returned block must have
+	 * the size of the grid block.
+	 */
+	@FunctionalInterface
+	public static interface Compute<I, T> {
+
+		public RandomAccessibleInterval<T> compute(final long[][] gridBlock, final I input) throws Exception;
+	}
+
+	public static final String[] STAGES = {"read", "compute", "encode", "write"};
+
+	private static final class Item {
+
+		final long[][] gridBlock;
+		long start;
+		Object payload;
+
+		Item(final long[][] gridBlock) {
+
+			this.gridBlock = gridBlock;
+		}
+	}
+
+	private static final Item POISON = new Item(null);
+
+	@FunctionalInterface
+	private static interface Work {
+
+		public Item process(final Item item) throws Exception;
+	}
+
+	private final Reader<I> reader;
+	private final Compute<I, T> compute;
+	private final N5Writer n5;
+	private final String dataset;
+	private final int[] threads;
+	private final int queueSize;
+
+	private final ArrayList<BlockingQueue<Item>> queues = new ArrayList<>();
+	private final LongAdder[] busyNanos = new LongAdder[STAGES.length];
+	private final LongAdder blocksWritten = new LongAdder();
+	private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+	private BiConsumer<long[][], Long> onWritten = (gridBlock, nanos) -> {};
+
+	/**
+	 * @param reader
+	 * @param compute
+	 * @param n5
+	 * @param dataset must exist
+	 * @param readThreads
+	 * @param computeThreads
+	 * @param encodeThreads
+	 * @param writeThreads
+	 * @param queueSize capacity of each queue between two stages
+	 */
+	public BlockPipeline(
+			final Reader<I> reader,
+			final Compute<I, T> compute,
+			final N5Writer n5,
+			final String dataset,
+			final int readThreads,
+			final int computeThreads,
+			final int encodeThreads,
+			final int writeThreads,
+			final int queueSize) {
+
+		this.reader = reader;
+		this.compute = compute;
+		this.n5 = n5;
+		this.dataset = dataset;
+		threads = new int[] {readThreads, computeThreads, encodeThreads, writeThreads};
+		this.queueSize = queueSize;
+		for (int i = 0; i < STAGES.length; ++i)
+			busyNanos[i] = new LongAdder();
+	}
+
+	/**
+	 * Called by the write stage after each block with the grid block and the
+	 * time in ns since its read started.
+	 *
+	 * @param onWritten
+	 */
+	public void setOnWritten(final BiConsumer<long[][], Long> onWritten) {
+
+		this.onWritten = onWritten;
+	}
+
+	/**
+	 * @return the number of blocks waiting in front of each stage, the
+	 *     first entry is the number of grid blocks that were not read yet
+	 */
+	public int[] getQueueDepths() {
+
+		final int[] depths = new int[queues.size()];
+		for (int i = 0; i < depths.length; ++i)
+			depths[i] = queues.get(i).size();
+		return depths;
+	}
+
+	/**
+	 * @return the time spent in each stage in ns, summed over its threads
+	 */
+	public long[] getBusyNanos() {
+
+		final long[] nanos = new long[STAGES.length];
+		for (int i = 0; i < nanos.length; ++i)
+			nanos[i] = busyNanos[i].sum();
+		return nanos;
+	}
+
+	public long getBlocksWritten() {
+
+		return blocksWritten.sum();
+	}
+
+	/**
+	 * @return queue depths and busy time per thread of each stage
+	 */
+	public String status() {
+
+		final int[] depths = getQueueDepths();
+		final long[] nanos = getBusyNanos();
+		final StringBuilder status = new StringBuilder("blocks written: " + getBlocksWritten());
+		for (int i = 0; i < STAGES.length; ++i) {
+			status.append(", " + STAGES[i] + ": ");
+			if (i == 0)
+				status.append(depths.length > 0 ? depths[0] : 0).append(" pending");
+			else
+				status.append(i < depths.length ? depths[i] : 0).append("/").append(queueSize).append(" queued");
+			status.append(String.format(", %.1fs per thread", nanos[i] / 1e9 / threads[i]));
+		}
+		return status.toString();
+	}
+
+	private void runStage(
+			final int stage,
+			final ExecutorService pool,
+			final AtomicInteger remaining,
+			final Work work) {
+
+		final BlockingQueue<Item> in = queues.get(stage);
+		final BlockingQueue<Item> out = stage + 1 < queues.size() ? queues.get(stage + 1) : null;
+
+		for (int t = 0; t < threads[stage]; ++t) {
+			pool.execute(() -> {
+				try {
+					for (Item item = in.take(); item != POISON; item = in.take()) {
+
+						/* drain without work after a failure */
+						if (failure.get() != null)
+							continue;
+
+						try {
+							final long t0 = System.nanoTime();
+							final Item processed = work.process(item);
+							busyNanos[stage].add(System.nanoTime() - t0);
+							if (out != null)
+								out.put(processed);
+						} catch (final Throwable e) {
+							failure.compareAndSet(null, e);
+						}
+					}
+
+					/* the last thread of this stage stops the next stage */
+					if (remaining.decrementAndGet() == 0 && out != null)
+						for (int i = 0; i < threads[stage + 1]; ++i)
+							out.put(POISON);
+
+				} catch (final InterruptedException e) {
+					failure.compareAndSet(null, e);
+					Thread.currentThread().interrupt();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Process and write all grid blocks.
+	 *
+	 * @param grid as created by {@link Grid#create}
+	 * @param log prints {@link #status()} every reportInterval ms, may be
+	 *     null
+	 * @param reportInterval
+	 * @throws Exception the first exception of any stage
+	 */
+	@SuppressWarnings("unchecked")
+	public void run(
+			final List<long[][]> grid,
+			final PrintStream log,
+			final long reportInterval) throws Exception {
+
+		final DatasetAttributes attributes = n5.getDatasetAttributes(dataset);
+		final boolean preEncode = n5 instanceof N5FSWriter;
+
+		queues.clear();
+		queues.add(new LinkedBlockingQueue<>());
+		for (int i = 1; i < STAGES.length; ++i)
+			queues.add(new ArrayBlockingQueue<>(queueSize));
+
+		final ArrayList<ExecutorService> pools = new ArrayList<>();
+		for (int i = 0; i < STAGES.length; ++i)
+			pools.add(Executors.newFixedThreadPool(threads[i]));
+
+		runStage(0, pools.get(0), new AtomicInteger(threads[0]), item -> {
+			item.start = System.nanoTime();
+			item.payload = reader.read(item.gridBlock);
+			return item;
+		});
+		runStage(1, pools.get(1), new AtomicInteger(threads[1]), item -> {
+			item.payload = compute.compute(item.gridBlock, (I)item.payload);
+			return item;
+		});
+		runStage(2, pools.get(2), new AtomicInteger(threads[2]), item -> {
+			final DataBlock<?> dataBlock = Resume.dataBlock(
+					(RandomAccessibleInterval<T>)item.payload,
+					attributes,
+					item.gridBlock[2]);
+			if (preEncode) {
+				final ByteArrayOutputStream out = new ByteArrayOutputStream();
+				DefaultBlockWriter.writeBlock(out, attributes, dataBlock);
+				item.payload = out.toByteArray();
+			} else
+				item.payload = dataBlock;
+			return item;
+		});
+		runStage(3, pools.get(3), new AtomicInteger(threads[3]), item -> {
+			if (preEncode) {
+				final byte[] bytes = (byte[])item.payload;
+				Resume.writeAtomically(
+						Resume.blockPath((N5FSWriter)n5, dataset, item.gridBlock[2]),
+						out -> out.write(bytes));
+			} else
+				n5.writeBlock(dataset, attributes, (DataBlock<?>)item.payload);
+			item.payload = null;
+			blocksWritten.increment();
+			onWritten.accept(item.gridBlock, System.nanoTime() - item.start);
+			return item;
+		});
+
+		ScheduledExecutorService monitor = null;
+		if (log != null && reportInterval > 0) {
+			monitor = Executors.newSingleThreadScheduledExecutor();
+			monitor.scheduleAtFixedRate(() -> log.println(status()), reportInterval, reportInterval, TimeUnit.MILLISECONDS);
+		}
+
+		/* feed the read stage */
+		final BlockingQueue<Item> in = queues.get(0);
+		for (final long[][] gridBlock : grid)
+			in.put(new Item(gridBlock));
+		for (int i = 0; i < threads[0]; ++i)
+			in.put(POISON);
+
+		for (final ExecutorService pool : pools) {
+			pool.shutdown();
+			pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+		}
+		if (monitor != null)
+			monitor.shutdown();
+
+		if (failure.get() != null) {
+			if (failure.get() instanceof Exception)
+				throw (Exception)failure.get();
+			else
+				throw new RuntimeException(failure.get());
+		}
+	}
+}
@@ -0,0 +1,368 @@
+package org.janelia.saalfeldlab.i2k2020.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.DefaultBlockReader;
+import org.janelia.saalfeldlab.n5.DefaultBlockWriter;
+import org.janelia.saalfeldlab.n5.GsonKeyValueN5Reader;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.cache.img.CellLoader;
+import net.imglib2.cache.img.SingleCellArrayImg;
+import net.imglib2.img.basictypeaccess.AccessFlags;
+import net.imglib2.type.NativeType;
+
+/**
+ * A persistent, size-bounded LRU cache of encoded N5 blocks on the local
+ * disk in front of any {@link N5Reader}, keyed by container URL, dataset,
+ * and grid position.  Blocks are read through the cache: a miss reads the
+ * block from the reader and stores it, a hit decodes the stored block, so
+ * repeated sessions on a remote container read at local disk speed.
+ *
+ * Blocks are stored compressed like in an N5 container.  Blocks of N5
+ * containers are stored as fetched, without decoding; blocks of other
+ * containers, e.g. Zarr, are decoded and encoded as N5 blocks with the
+ * compression of the dataset.  Missing blocks are stored as empty files so
+ * they are not requested again.  Files are written to a temporary file and
+ * atomically moved into place, so several processes can share a cache
+ * directory.  The least recently used files are deleted when the cache
+ * exceeds its size limit; the access time is the file modification time,
+ * so the LRU order persists across sessions.
+ *
+ * @author Stephan Saalfeld
+ */
+public class DiskCache {
+
+	/**
+	 * A {@link CellLoader} that fills cells with {@link DataBlock DataBlocks}
+	 * read through a {@link DiskCache}.  Cells must match the blocks of the
+	 * dataset.
+	 *
+	 * @param <T>
+	 */
+	public static class Loader<T extends NativeType<T>> implements CellLoader<T> {
+
+		private final DiskCache diskCache;
+		private final N5Reader n5;
+		private final String url;
+		private final String dataset;
+		private final DatasetAttributes attributes;
+
+		public Loader(
+				final DiskCache diskCache,
+				final N5Reader n5,
+				final String url,
+				final String dataset,
+				final DatasetAttributes attributes) {
+
+			this.diskCache = diskCache;
+			this.n5 = n5;
+			this.url = url;
+			this.dataset = dataset;
+			this.attributes = attributes;
+		}
+
+		@Override
+		public void load(final SingleCellArrayImg<T, ?> cell) throws IOException {
+
+			final int[] blockSize = attributes.getBlockSize();
+			final long[] gridPosition = new long[cell.numDimensions()];
+			for (int d = 0; d < gridPosition.length; ++d)
+				gridPosition[d] = cell.min(d) / blockSize[d];
+
+			final DataBlock<?> block = diskCache.readBlock(n5, url, dataset, attributes, gridPosition);
+			if (block != null)
+				BlockCache.copy(block, cell);
+		}
+	}
+
+	private final Path directory;
+	private final LinkedHashMap<Path, Long> files = new LinkedHashMap<>(16, 0.75f, true);
+	private long maxBytes;
+	private long bytes = 0;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+
+	/**
+	 * Open a cache directory, existing files are indexed in the order of
+	 * their last access.
+	 *
+	 * @param directory
+	 * @param maxBytes
+	 * @throws IOException
+	 */
+	public DiskCache(final Path directory, final long maxBytes) throws IOException {
+
+		this.directory = directory;
+		this.maxBytes = maxBytes;
+
+		Files.createDirectories(directory);
+		try (final Stream<Path> paths = Files.walk(directory)) {
+			paths
+					.filter(Files::isRegularFile)
+					.filter(path -> !path.getFileName().toString().endsWith(".tmp"))
+					.sorted(Comparator.comparing(DiskCache::lastModified))
+					.forEach(path -> {
+						try {
+							final long size = Files.size(path);
+							files.put(path, size);
+							bytes += size;
+						} catch (final IOException e) {
+							throw new UncheckedIOException(e);
+						}
+					});
+		} catch (final UncheckedIOException e) {
+			throw e.getCause();
+		}
+		evict();
+	}
+
+	private static FileTime lastModified(final Path path) {
+
+		try {
+			return Files.getLastModifiedTime(path);
+		} catch (final IOException e) {
+			return FileTime.fromMillis(0);
+		}
+	}
+
+	private static String hash(final String url) {
+
+		try {
+			final byte[] digest = MessageDigest.getInstance("SHA-256").digest(url.getBytes(StandardCharsets.UTF_8));
+			final StringBuilder hex = new StringBuilder();
+			for (int i = 0; i < 16; ++i)
+				hex.append(String.format("%02x", digest[i]));
+			return hex.toString();
+		} catch (final NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * @param url
+	 * @param dataset
+	 * @param gridPosition
+	 * @return the path of a cached block
+	 */
+	public Path blockPath(final String url, final String dataset, final long... gridPosition) {
+
+		Path path = directory.resolve(hash(url)).resolve(dataset.replaceFirst("^/+", ""));
+		for (final long p : gridPosition)
+			path = path.resolve(Long.toString(p));
+		return path;
+	}
+
+	private synchronized void evict() {
+
+		final Iterator<Entry<Path, Long>> iterator = files.entrySet().iterator();
+		while (bytes > maxBytes && iterator.hasNext()) {
+			final Entry<Path, Long> entry = iterator.next();
+			try {
+				Files.deleteIfExists(entry.getKey());
+			} catch (final IOException e) {
+				/* try again with the next eviction */
+				continue;
+			}
+			bytes -= entry.getValue();
+			iterator.remove();
+		}
+	}
+
+	private synchronized boolean touch(final Path path) {
+
+		if (files.get(path) == null)
+			return false;
+		try {
+			Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+		} catch (final IOException e) {
+			/* evicted by another process */
+			bytes -= files.remove(path);
+			return false;
+		}
+		return true;
+	}
+
+	private synchronized void put(final Path path, final long size) {
+
+		final Long previous = files.put(path, size);
+		if (previous != null)
+			bytes -= previous;
+		bytes += size;
+		evict();
+	}
+
+	private synchronized void remove(final Path path) {
+
+		final Long previous = files.remove(path);
+		if (previous != null)
+			bytes -= previous;
+	}
+
+	public synchronized void setMaxBytes(final long maxBytes) {
+
+		this.maxBytes = maxBytes;
+		evict();
+	}
+
+	public synchronized long getMaxBytes() {
+
+		return maxBytes;
+	}
+
+	public synchronized long getBytes() {
+
+		return bytes;
+	}
+
+	public long getHits() {
+
+		return hits.sum();
+	}
+
+	public long getMisses() {
+
+		return misses.sum();
+	}
+
+	/**
+	 * Fetch the encoded block from the reader, as stored for N5 containers
+	 * and encoded as an N5 block otherwise.
+	 *
+	 * @return the encoded block, empty if the block does not exist
+	 */
+	private static byte[] fetch(
+			final N5Reader n5,
+			final String dataset,
+			final DatasetAttributes attributes,
+			final long... gridPosition) throws IOException {
+
+		if (BlockCopy.format(n5, dataset) == BlockCopy.Format.N5) {
+			final byte[] bytes = BlockCopy.readBytes((GsonKeyValueN5Reader)n5, dataset, gridPosition);
+			return bytes == null ? new byte[0] : bytes;
+		}
+
+		final DataBlock<?> block = n5.readBlock(dataset, attributes, gridPosition);
+		if (block == null)
+			return new byte[0];
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		DefaultBlockWriter.writeBlock(out, attributes, block);
+		return out.toByteArray();
+	}
+
+	private static DataBlock<?> decode(
+			final byte[] bytes,
+			final DatasetAttributes attributes,
+			final long... gridPosition) throws IOException {
+
+		if (bytes.length == 0)
+			return null;
+		return DefaultBlockReader.readBlock(new ByteArrayInputStream(bytes), attributes, gridPosition);
+	}
+
+	/**
+	 * Read a block through the cache.
+	 *
+	 * @param n5
+	 * @param url the URL of the container, part of the cache key
+	 * @param dataset
+	 * @param attributes
+	 * @param gridPosition
+	 * @return the block or null if it does not exist
+	 * @throws IOException
+	 */
+	public DataBlock<?> readBlock(
+			final N5Reader n5,
+			final String url,
+			final String dataset,
+			final DatasetAttributes attributes,
+			final long... gridPosition) throws IOException {
+
+		final Path path = blockPath(url, dataset, gridPosition);
+		if (touch(path)) {
+			try {
+				final DataBlock<?> block = decode(Files.readAllBytes(path), attributes, gridPosition);
+				hits.increment();
+				return block;
+			} catch (final IOException e) {
+				/* evicted by another process or corrupt, fetch again */
+				remove(path);
+			}
+		}
+
+		misses.increment();
+		final byte[] bytes = fetch(n5, dataset, attributes, gridPosition);
+		final DataBlock<?> block = decode(bytes, attributes, gridPosition);
+		Resume.writeAtomically(path, out -> out.write(bytes));
+		put(path, bytes.length);
+		return block;
+	}
+
+	/**
+	 * Open an N5 dataset as a {@link CachedCellImg} whose cells are loaded
+	 * through a {@link DiskCache}.
+	 *
+	 * @param <T>
+	 * @param diskCache
+	 * @param n5
+	 * @param url the URL of the container, part of the cache key
+	 * @param dataset
+	 * @param accessFlags e.g. volatile for BDV
+	 * @return
+	 * @throws IOException
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T extends NativeType<T>> CachedCellImg<T, ?> open(
+			final DiskCache diskCache,
+			final N5Reader n5,
+			final String url,
+			final String dataset,
+			final Set<AccessFlags> accessFlags) throws IOException {
+
+		final DatasetAttributes attributes = n5.getDatasetAttributes(dataset);
+		final T type = (T)N5Utils.type(attributes.getDataType());
+
+		return Lazy.createImg(
+				new FinalInterval(attributes.getDimensions()),
+				attributes.getBlockSize(),
+				type,
+				accessFlags,
+				new Loader<>(diskCache, n5, url, dataset, attributes));
+	}
+
+	/**
+	 * Open a cache directory with a size limit in bytes.
+	 *
+	 * @param directory
+	 * @param maxBytes
+	 * @return
+	 * @throws IOException
+	 */
+	public static DiskCache open(final String directory, final long maxBytes) throws IOException {
+
+		return new DiskCache(Paths.get(directory), maxBytes);
+	}
+}
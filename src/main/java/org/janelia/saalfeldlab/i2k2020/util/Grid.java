@@ -6,6 +6,7 @@ import java.util.List;
 
 import org.janelia.saalfeldlab.n5.DataBlock;
 
+import net.imglib2.FinalInterval;
 import net.imglib2.Interval;
 import net.imglib2.util.Intervals;
 
@@ -103,6 +104,28 @@ public interface Grid {
 		return offsets;
 	}
 
+	/**
+	 * Returns the bounding box of a non-empty {@link List} of grid blocks as
+	 * created by {@link #create(long[], int[], int[])}.
+	 *
+	 * @param gridBlocks
+	 * @return
+	 */
+	public static Interval boundingBox(final List<long[][]> gridBlocks) {
+
+		final int n = gridBlocks.get(0)[0].length;
+		final long[] min = gridBlocks.get(0)[0].clone();
+		final long[] max = new long[n];
+		Arrays.fill(max, Long.MIN_VALUE);
+		for (final long[][] gridBlock : gridBlocks) {
+			for (int d = 0; d < n; ++d) {
+				min[d] = Math.min(min[d], gridBlock[0][d]);
+				max[d] = Math.max(max[d], gridBlock[0][d] + gridBlock[1][d] - 1);
+			}
+		}
+		return new FinalInterval(min, max);
+	}
+
 	/**
 	 * Returns the grid coordinates of a given offset for a min coordinate and
 	 * a grid spacing.
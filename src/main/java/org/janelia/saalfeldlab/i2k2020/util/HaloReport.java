@@ -0,0 +1,190 @@
+package org.janelia.saalfeldlab.i2k2020.util;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import net.imglib2.RandomAccessibleInterval;
+
+/**
+ * Instrumentation for {@link Lazy} pipelines.  For each stage, i.e. a cell
+ * generator with a known halo (padding), we record the number of voxels
+ * that the stage reads including the halo, the number of voxels that it
+ * produces, and the time per block.  The summary ranks stages by wasted
+ * work, i.e. the time spent on voxels that were only read as halo, so that
+ * cell sizes can be picked on data rather than guesses.
+ *
+ * <pre>
+ * final HaloReport report = new HaloReport();
+ * final Consumer&lt;RandomAccessibleInterval&lt;T&gt;&gt; op =
+ *     report.stage("CLLCN", blockRadius, blockRadius).wrap(cllcn);
+ * ...
+ * report.print(System.out);
+ * </pre>
+ *
+ * @author Stephan Saalfeld
+ */
+public class HaloReport {
+
+	public static class Stage {
+
+		private final String name;
+		private final long[] halo;
+
+		private final LongAdder blocks = new LongAdder();
+		private final LongAdder voxelsRead = new LongAdder();
+		private final LongAdder voxelsProduced = new LongAdder();
+		private final LongAdder nanos = new LongAdder();
+
+		/**
+		 *
+		 * @param name
+		 * @param halo the padding on either side of a block per dimension,
+		 *     missing trailing dimensions have no padding
+		 */
+		public Stage(final String name, final long... halo) {
+
+			this.name = name;
+			this.halo = halo;
+		}
+
+		public String getName() {
+
+			return name;
+		}
+
+		public long getBlocks() {
+
+			return blocks.sum();
+		}
+
+		public long getVoxelsRead() {
+
+			return voxelsRead.sum();
+		}
+
+		public long getVoxelsProduced() {
+
+			return voxelsProduced.sum();
+		}
+
+		/**
+		 * @return time spent in this stage in ms
+		 */
+		public double getTime() {
+
+			return nanos.sum() / 1000000.0;
+		}
+
+		/**
+		 * @return voxels read including halo per voxel produced
+		 */
+		public double getOverhead() {
+
+			final long produced = getVoxelsProduced();
+			return produced == 0 ? 0 : (double)getVoxelsRead() / produced;
+		}
+
+		/**
+		 * @return time in ms spent on halo voxels, assuming that the cost is
+		 *     proportional to the number of voxels read
+		 */
+		public double getWastedTime() {
+
+			final long read = getVoxelsRead();
+			return read == 0 ? 0 : getTime() * (read - getVoxelsProduced()) / read;
+		}
+
+		/**
+		 * Record a block.
+		 *
+		 * @param block
+		 * @param nanos
+		 */
+		public void record(final RandomAccessibleInterval<?> block, final long nanos) {
+
+			long produced = 1;
+			long read = 1;
+			for (int d = 0; d < block.numDimensions(); ++d) {
+				final long size = block.dimension(d);
+				produced *= size;
+				read *= size + (d < halo.length ? 2 * halo[d] : 0);
+			}
+			blocks.increment();
+			voxelsProduced.add(produced);
+			voxelsRead.add(read);
+			this.nanos.add(nanos);
+		}
+
+		/**
+		 * Wrap a cell generator to record every block it generates.
+		 *
+		 * @param <T>
+		 * @param op
+		 * @return
+		 */
+		public <T> Consumer<RandomAccessibleInterval<T>> wrap(final Consumer<RandomAccessibleInterval<T>> op) {
+
+			return block -> {
+				final long t = System.nanoTime();
+				op.accept(block);
+				record(block, System.nanoTime() - t);
+			};
+		}
+
+		@Override
+		public String toString() {
+
+			final long n = getBlocks();
+			return String.format(
+					"%-24s halo %-16s blocks %8d  read %14d  produced %14d  overhead %8.2fx  time %10.1fms  per block %8.2fms  wasted %10.1fms",
+					name,
+					Arrays.toString(halo),
+					n,
+					getVoxelsRead(),
+					getVoxelsProduced(),
+					getOverhead(),
+					getTime(),
+					n == 0 ? 0 : getTime() / n,
+					getWastedTime());
+		}
+	}
+
+	private final List<Stage> stages = new CopyOnWriteArrayList<>();
+
+	/**
+	 * Create and register a new stage.
+	 *
+	 * @param name
+	 * @param halo
+	 * @return
+	 */
+	public Stage stage(final String name, final long... halo) {
+
+		final Stage stage = new Stage(name, halo);
+		stages.add(stage);
+		return stage;
+	}
+
+	/**
+	 * @return all stages, most wasted time first
+	 */
+	public List<Stage> ranked() {
+
+		final ArrayList<Stage> ranked = new ArrayList<>(stages);
+		ranked.sort(Comparator.comparingDouble(Stage::getWastedTime).reversed());
+		return ranked;
+	}
+
+	public void print(final PrintStream out) {
+
+		out.println("Halo report, stages ranked by wasted work:");
+		for (final Stage stage : ranked())
+			out.println("  " + stage);
+	}
+}
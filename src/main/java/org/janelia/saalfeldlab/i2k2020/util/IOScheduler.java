@@ -0,0 +1,315 @@
+package org.janelia.saalfeldlab.i2k2020.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.janelia.saalfeldlab.n5.Compression;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.DefaultBlockWriter;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Writer;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.NativeType;
+import net.imglib2.view.Views;
+
+/**
+ * Separate executors for I/O and CPU-bound work of block-wise copies.
+ *
+ * Block fetch and store block on storage latency, not on CPU, so they run
+ * on virtual threads if the JVM has them (Java 21+), or else on a pool of
+ * platform threads.  The number of concurrent I/O tasks is limited by a
+ * {@link Semaphore}, independent of the number of threads, so it can be
+ * tuned to the storage backend, e.g. low for a local disk and high for S3.
+ * Encoding and compression run on a separate pool with one thread per
+ * core.
+ *
+ * @author Stephan Saalfeld
+ */
+public class IOScheduler implements AutoCloseable {
+
+	/**
+	 * Runs tasks of a delegate {@link ExecutorService} with at most
+	 * maxConcurrency at the same time.
+	 */
+	private static class LimitedExecutorService extends AbstractExecutorService {
+
+		private final ExecutorService delegate;
+		private final Semaphore permits;
+
+		LimitedExecutorService(final ExecutorService delegate, final int maxConcurrency) {
+
+			this.delegate = delegate;
+			permits = new Semaphore(maxConcurrency);
+		}
+
+		@Override
+		public void execute(final Runnable command) {
+
+			/*
+			 * never skip the command, callers wait for its completion; an
+			 * interrupt while waiting for a permit stays set for the command
+			 */
+			delegate.execute(() -> {
+				permits.acquireUninterruptibly();
+				try {
+					command.run();
+				} finally {
+					permits.release();
+				}
+			});
+		}
+
+		@Override
+		public void shutdown() {
+
+			delegate.shutdown();
+		}
+
+		@Override
+		public List<Runnable> shutdownNow() {
+
+			return delegate.shutdownNow();
+		}
+
+		@Override
+		public boolean isShutdown() {
+
+			return delegate.isShutdown();
+		}
+
+		@Override
+		public boolean isTerminated() {
+
+			return delegate.isTerminated();
+		}
+
+		@Override
+		public boolean awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException {
+
+			return delegate.awaitTermination(timeout, unit);
+		}
+	}
+
+	private final ExecutorService io;
+	private final ExecutorService cpu;
+	private final boolean virtual;
+	private final int maxInFlight;
+
+	/**
+	 * @param maxConcurrentIO maximum number of concurrent block reads and
+	 *     writes
+	 * @param cpuThreads number of threads for encoding and compression
+	 */
+	public IOScheduler(final int maxConcurrentIO, final int cpuThreads) {
+
+		final ExecutorService virtualThreads = newVirtualThreadPerTaskExecutor();
+		virtual = virtualThreads != null;
+		io = virtual ?
+				new LimitedExecutorService(virtualThreads, maxConcurrentIO) :
+				Executors.newFixedThreadPool(maxConcurrentIO);
+		cpu = Executors.newFixedThreadPool(cpuThreads);
+		maxInFlight = 2 * (maxConcurrentIO + cpuThreads);
+	}
+
+	/**
+	 * One thread per core for encoding and compression.
+	 *
+	 * @param maxConcurrentIO
+	 */
+	public IOScheduler(final int maxConcurrentIO) {
+
+		this(maxConcurrentIO, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Returns {@code Executors.newVirtualThreadPerTaskExecutor()} if this JVM
+	 * supports virtual threads, null otherwise.  This is resolved at runtime
+	 * so the code compiles and runs on older JVMs.
+	 *
+	 * @return
+	 */
+	public static ExecutorService newVirtualThreadPerTaskExecutor() {
+
+		try {
+			return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (final ReflectiveOperationException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return the executor for block fetch and store
+	 */
+	public ExecutorService io() {
+
+		return io;
+	}
+
+	/**
+	 * @return the executor for CPU-bound work
+	 */
+	public ExecutorService cpu() {
+
+		return cpu;
+	}
+
+	/**
+	 * @return whether I/O runs on virtual threads
+	 */
+	public boolean isVirtual() {
+
+		return virtual;
+	}
+
+	/**
+	 * Save a zero-min or non-zero-min image block-wise like
+	 * {@link org.janelia.saalfeldlab.n5.imglib2.N5Utils#save(RandomAccessibleInterval, N5Writer, String, int[], Compression, ExecutorService)}.
+	 * Blocks are fetched from img on the I/O executor, encoded and
+	 * compressed on the CPU executor, and stored on the I/O executor.  Only
+	 * N5 containers on the file system can store pre-encoded blocks, other
+	 * backends encode in their writeBlock method on the I/O executor.  Blocks
+	 * in N5 containers on the file system are stored atomically.
+	 *
+	 * The number of blocks in flight is bounded, so fetched blocks do not
+	 * pile up when encoding or storage is slower than fetching.
+	 *
+	 * @param <T>
+	 * @param img
+	 * @param n5
+	 * @param dataset
+	 * @param blockSize
+	 * @param compression
+	 * @param resume only save blocks that are not complete, see
+	 *     {@link Resume}
+	 * @return the number of blocks that were saved
+	 * @throws IOException
+	 * @throws InterruptedException
+	 * @throws ExecutionException
+	 */
+	public <T extends NativeType<T>> int save(
+			final RandomAccessibleInterval<T> img,
+			final N5Writer n5,
+			final String dataset,
+			final int[] blockSize,
+			final Compression compression,
+			final boolean resume) throws IOException, InterruptedException, ExecutionException {
+
+		final RandomAccessibleInterval<T> zeroMinImg = Views.zeroMin(img);
+		final DatasetAttributes attributes = Resume.createDatasetIfMissing(zeroMinImg, n5, dataset, blockSize, compression);
+		final boolean preEncode = n5 instanceof N5FSWriter;
+
+		final Semaphore inFlight = new Semaphore(maxInFlight);
+		final ArrayList<CompletableFuture<Boolean>> futures = new ArrayList<>();
+		for (final long[][] gridBlock : Grid.create(attributes.getDimensions(), blockSize)) {
+
+			while (!inFlight.tryAcquire(1, TimeUnit.SECONDS))
+				checkRunning();
+
+			/* fetch */
+			final CompletableFuture<DataBlock<?>> fetched = CompletableFuture.supplyAsync(
+					() -> resume && Resume.isComplete(n5, dataset, attributes, gridBlock[2]) ?
+							null :
+							Resume.dataBlock(Views.offsetInterval(zeroMinImg, gridBlock[0], gridBlock[1]), attributes, gridBlock[2]),
+					io);
+
+			final CompletableFuture<Boolean> stored;
+			if (preEncode) {
+
+				/* encode */
+				final CompletableFuture<byte[]> encoded = fetched.thenApplyAsync(
+						dataBlock -> {
+							if (dataBlock == null)
+								return null;
+							final ByteArrayOutputStream out = new ByteArrayOutputStream();
+							try {
+								DefaultBlockWriter.writeBlock(out, attributes, dataBlock);
+							} catch (final IOException e) {
+								throw new CompletionException(e);
+							}
+							return out.toByteArray();
+						},
+						cpu);
+
+				/* store */
+				stored = encoded.thenApplyAsync(
+						bytes -> {
+							if (bytes == null)
+								return false;
+							try {
+								Resume.writeAtomically(
+										Resume.blockPath((N5FSWriter)n5, dataset, gridBlock[2]),
+										out -> out.write(bytes));
+							} catch (final IOException e) {
+								throw new CompletionException(e);
+							}
+							return true;
+						},
+						io);
+			} else {
+
+				/* encode and store */
+				stored = fetched.thenApplyAsync(
+						dataBlock -> {
+							if (dataBlock == null)
+								return false;
+							n5.writeBlock(dataset, attributes, dataBlock);
+							return true;
+						},
+						io);
+			}
+
+			stored.whenComplete((saved, e) -> inFlight.release());
+			futures.add(stored);
+		}
+
+		int saved = 0;
+		for (final CompletableFuture<Boolean> future : futures)
+			if (await(future))
+				++saved;
+
+		return saved;
+	}
+
+	/**
+	 * Tasks that were dropped by {@link ExecutorService#shutdownNow()} never
+	 * complete, so fail instead of waiting for them forever.
+	 */
+	private void checkRunning() {
+
+		if (io.isShutdown() || cpu.isShutdown())
+			throw new RejectedExecutionException("IOScheduler was shut down before all blocks were saved.");
+	}
+
+	private <V> V await(final CompletableFuture<V> future) throws InterruptedException, ExecutionException {
+
+		while (true) {
+			try {
+				return future.get(1, TimeUnit.SECONDS);
+			} catch (final TimeoutException e) {
+				if (io.isTerminated() || cpu.isTerminated())
+					checkRunning();
+			}
+		}
+	}
+
+	@Override
+	public void close() {
+
+		io.shutdown();
+		cpu.shutdown();
+	}
+}
@@ -0,0 +1,81 @@
+package org.janelia.saalfeldlab.i2k2020.util;
+
+import java.util.function.IntConsumer;
+
+/**
+ * Iterate over the 1D lines of a flat n-dimensional array in F-order (the
+ * first dimension is the fastest), e.g. to implement separable filters on
+ * primitive arrays.
+ */
+public interface Lines {
+
+	/**
+	 * Returns the flat index distance between two neighboring elements
+	 * along dimension d.
+	 *
+	 * @param dimensions
+	 * @param d
+	 * @return
+	 */
+	public static int stride(final int[] dimensions, final int d) {
+
+		int stride = 1;
+		for (int e = 0; e < d; ++e)
+			stride *= dimensions[e];
+		return stride;
+	}
+
+	/**
+	 * Returns the number of elements of a flat array with the given
+	 * dimensions.
+	 *
+	 * @param dimensions
+	 * @return
+	 */
+	public static int size(final int[] dimensions) {
+
+		return stride(dimensions, dimensions.length);
+	}
+
+	/**
+	 * Calls an action with the flat index of the first element of every line
+	 * along dimension d whose coordinates in all other dimensions e are in
+	 * [min[e], max[e]].  min[d] and max[d] are ignored.
+	 *
+	 * @param dimensions
+	 * @param d
+	 * @param min
+	 * @param max
+	 * @param action
+	 */
+	public static void forEachLine(
+			final int[] dimensions,
+			final int d,
+			final int[] min,
+			final int[] max,
+			final IntConsumer action) {
+
+		final int n = dimensions.length;
+		final int[] position = min.clone();
+		position[d] = 0;
+
+		for (int e = 0; e < n;) {
+
+			int index = 0;
+			for (int f = n - 1; f >= 0; --f)
+				index = index * dimensions[f] + position[f];
+
+			action.accept(index);
+
+			for (e = 0; e < n; ++e) {
+				if (e == d)
+					continue;
+				++position[e];
+				if (position[e] <= max[e])
+					break;
+				else
+					position[e] = min[e];
+			}
+		}
+	}
+}
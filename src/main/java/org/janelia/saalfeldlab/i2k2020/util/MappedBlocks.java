@@ -0,0 +1,241 @@
+package org.janelia.saalfeldlab.i2k2020.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5KeyValueReader;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.RawCompression;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.cache.Cache;
+import net.imglib2.cache.CacheLoader;
+import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.cache.ref.SoftRefLoaderCache;
+import net.imglib2.img.basictypeaccess.nio.BufferAccess;
+import net.imglib2.img.basictypeaccess.nio.ByteBufferAccess;
+import net.imglib2.img.basictypeaccess.nio.DoubleBufferAccess;
+import net.imglib2.img.basictypeaccess.nio.FloatBufferAccess;
+import net.imglib2.img.basictypeaccess.nio.IntBufferAccess;
+import net.imglib2.img.basictypeaccess.nio.LongBufferAccess;
+import net.imglib2.img.basictypeaccess.nio.ShortBufferAccess;
+import net.imglib2.img.cell.Cell;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.type.NativeType;
+
+/**
+ * Zero-copy reads of uncompressed N5 datasets on the local file system.
+ * Each block file is memory-mapped and the cell of the image is backed by
+ * the mapped buffer behind the block header.  Nothing is copied into the
+ * heap, and repeated reads of the same blocks, e.g. by other processes or
+ * after the cell was evicted from the cache, are served from the OS page
+ * cache.
+ *
+ * Mapped cells are read-only.  Missing blocks are empty cells, and blocks
+ * that cannot be mapped (varlength blocks or blocks whose size does not
+ * match the cell) are read with {@link N5Reader#readBlock}.  Datasets that
+ * are compressed or not in a local N5 container are opened with
+ * {@link N5Utils#open(N5Reader, String)}, so {@link #open(N5Reader, String)}
+ * can be used for any dataset.
+ *
+ * @author Stephan Saalfeld
+ */
+public interface MappedBlocks {
+
+	/**
+	 * Whether the blocks of a dataset can be memory-mapped, i.e. the
+	 * dataset is uncompressed, in an N5 container on the local file
+	 * system, and has a primitive data type.
+	 *
+	 * @param n5
+	 * @param attributes
+	 * @return
+	 */
+	public static boolean isMappable(final N5Reader n5, final DatasetAttributes attributes) {
+
+		return
+				n5 instanceof N5KeyValueReader &&
+				"file".equals(n5.getURI().getScheme()) &&
+				attributes.getCompression() instanceof RawCompression &&
+				access(attributes) != null;
+	}
+
+	/**
+	 * An empty, heap backed {@link BufferAccess} of the data type of a
+	 * dataset, use {@link BufferAccess#newInstance(ByteBuffer, boolean)} to
+	 * wrap buffers.
+	 *
+	 * @param attributes
+	 * @return null for non-primitive data types
+	 */
+	public static BufferAccess<?> access(final DatasetAttributes attributes) {
+
+		switch (attributes.getDataType()) {
+		case INT8:
+		case UINT8:
+			return new ByteBufferAccess(0, true);
+		case INT16:
+		case UINT16:
+			return new ShortBufferAccess(0, true);
+		case INT32:
+		case UINT32:
+			return new IntBufferAccess(0, true);
+		case INT64:
+		case UINT64:
+			return new LongBufferAccess(0, true);
+		case FLOAT32:
+			return new FloatBufferAccess(0, true);
+		case FLOAT64:
+			return new DoubleBufferAccess(0, true);
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * Memory-map the data of an uncompressed N5 block.  The returned buffer
+	 * starts after the block header and is big-endian like the N5 format.
+	 *
+	 * @param path of the block file
+	 * @param cellDimensions expected block size
+	 * @param bytesPerElement
+	 * @return the mapped data or null if the block file does not exist
+	 * @throws IOException if the block is not a default mode block of the
+	 *     expected size
+	 */
+	public static ByteBuffer map(
+			final Path path,
+			final int[] cellDimensions,
+			final int bytesPerElement) throws IOException {
+
+		try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+
+			final MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+			/* header: mode, nDim, dimensions, see DefaultBlockReader */
+			final short mode = mapped.getShort();
+			final int n = mapped.getShort();
+			if (mode != 0 || n != cellDimensions.length)
+				throw new IOException("Cannot map block " + path + " with mode " + mode + " and " + n + " dimensions.");
+
+			long numElements = 1;
+			for (int d = 0; d < n; ++d) {
+				final int size = mapped.getInt();
+				if (size != cellDimensions[d])
+					throw new IOException("Cannot map block " + path + " with size " + size + " != " + cellDimensions[d] + " in dimension " + d + ".");
+				numElements *= size;
+			}
+
+			final long numBytes = numElements * bytesPerElement;
+			if (mapped.remaining() < numBytes)
+				throw new IOException("Block " + path + " is truncated.");
+
+			mapped.limit(mapped.position() + (int)numBytes);
+			return mapped.slice();
+
+		} catch (final NoSuchFileException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * A {@link CacheLoader} for cells backed by memory-mapped blocks of an
+	 * uncompressed N5 dataset on the local file system.
+	 *
+	 * @param <A>
+	 */
+	public static class Loader<A extends BufferAccess<A>> implements CacheLoader<Long, Cell<A>> {
+
+		private final N5Reader n5;
+		private final String dataset;
+		private final DatasetAttributes attributes;
+		private final CellGrid grid;
+		private final A accessType;
+
+		public Loader(
+				final N5Reader n5,
+				final String dataset,
+				final DatasetAttributes attributes,
+				final CellGrid grid,
+				final A accessType) {
+
+			this.n5 = n5;
+			this.dataset = dataset;
+			this.attributes = attributes;
+			this.grid = grid;
+			this.accessType = accessType;
+		}
+
+		@Override
+		public Cell<A> get(final Long key) throws IOException {
+
+			final int n = grid.numDimensions();
+			final long[] cellMin = new long[n];
+			final int[] cellDimensions = new int[n];
+			grid.getCellDimensions(key, cellMin, cellDimensions);
+
+			final int[] blockSize = attributes.getBlockSize();
+			final long[] gridPosition = new long[n];
+			long numElements = 1;
+			for (int d = 0; d < n; ++d) {
+				gridPosition[d] = cellMin[d] / blockSize[d];
+				numElements *= cellDimensions[d];
+			}
+
+			final int bytesPerElement = accessType.getNumBytesPerEntity();
+			final Path path = Resume.blockPath(n5, dataset, gridPosition);
+
+			ByteBuffer buffer;
+			try {
+				buffer = map(path, cellDimensions, bytesPerElement);
+				if (buffer == null)
+					buffer = ByteBuffer.allocate((int)(numElements * bytesPerElement));
+			} catch (final IOException e) {
+				final DataBlock<?> block = n5.readBlock(dataset, attributes, gridPosition);
+				if (block == null || block.getNumElements() != numElements)
+					throw e;
+				buffer = block.toByteBuffer();
+			}
+
+			return new Cell<>(cellDimensions, cellMin, accessType.newInstance(buffer, true));
+		}
+	}
+
+	/**
+	 * Open a dataset as a {@link CachedCellImg} whose cells are backed by
+	 * memory-mapped blocks if the dataset {@link #isMappable(N5Reader,
+	 * DatasetAttributes) is mappable}, or with
+	 * {@link N5Utils#open(N5Reader, String)} otherwise.
+	 *
+	 * @param <T>
+	 * @param n5
+	 * @param dataset
+	 * @return
+	 * @throws IOException
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public static <T extends NativeType<T>> RandomAccessibleInterval<T> open(
+			final N5Reader n5,
+			final String dataset) throws IOException {
+
+		final DatasetAttributes attributes = n5.getDatasetAttributes(dataset);
+		if (!isMappable(n5, attributes))
+			return N5Utils.open(n5, dataset);
+
+		final T type = (T)N5Utils.type(attributes.getDataType());
+		final CellGrid grid = new CellGrid(attributes.getDimensions(), attributes.getBlockSize());
+		final BufferAccess accessType = access(attributes);
+		final Cache<Long, Cell<BufferAccess>> cache =
+				new SoftRefLoaderCache().withLoader(new Loader(n5, dataset, attributes, grid, accessType));
+
+		return new CachedCellImg(grid, type, cache, accessType);
+	}
+}
@@ -0,0 +1,401 @@
+package org.janelia.saalfeldlab.i2k2020.util;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import bdv.viewer.ViewerPanel;
+import net.imglib2.FinalRealInterval;
+import net.imglib2.RealInterval;
+import net.imglib2.cache.Cache;
+import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.util.IntervalIndexer;
+
+/**
+ * Prefetches cells of a {@link CachedCellImg} shown in BigDataViewer ahead
+ * of navigation.  BDV loads only visible cells, through the volatile
+ * wrapper and its {@link bdv.cache.SharedQueue}, so cells that scroll into
+ * view are blank until they are loaded.  The prefetcher listens to viewer
+ * transform changes, estimates the velocity of the screen center in
+ * source coordinates, and loads the cells of the predicted visible region
+ * some time ahead.  With lower priority, it loads the cells of the planes
+ * in front of and behind the current plane.
+ *
+ * Cells are loaded into the cache of the non-volatile image, which backs
+ * the volatile wrapper that BDV renders, e.g. as created by
+ * {@link bdv.util.volatiles.VolatileViews#wrapAsVolatile}.  Prefetching
+ * runs on few low priority threads, and pending prefetches are dropped on
+ * every transform change, so it does not compete much with loading the
+ * visible cells.
+ *
+ * Cells that become visible are counted as hits if they are already
+ * loaded and as misses otherwise, and hits of prefetched cells are counted
+ * separately, so the hit rate with and without prefetching can be
+ * compared.
+ *
+ * @author Stephan Saalfeld
+ */
+public class Prefetcher {
+
+	private static final int AHEAD = 0;
+	private static final int ADJACENT = 1;
+
+	private class PrefetchTask implements Runnable, Comparable<PrefetchTask> {
+
+		final long index;
+		final int priority;
+		final long generation;
+
+		PrefetchTask(final long index, final int priority, final long generation) {
+
+			this.index = index;
+			this.priority = priority;
+			this.generation = generation;
+		}
+
+		@Override
+		public int compareTo(final PrefetchTask other) {
+
+			return Integer.compare(priority, other.priority);
+		}
+
+		@Override
+		public void run() {
+
+			/* outdated by a newer transform */
+			if (generation != Prefetcher.this.generation.get() || cache.getIfPresent(index) != null)
+				return;
+
+			try {
+				cache.get(index);
+				prefetched.add(index);
+				prefetchedCells.increment();
+			} catch (final Exception e) {
+				/* the cell will be loaded when it becomes visible */
+			}
+		}
+	}
+
+	private final Cache<Long, ?> cache;
+	private final CellGrid grid;
+	private final AffineTransform3D sourceTransform;
+	private final ThreadPoolExecutor exec;
+
+	private final AtomicLong generation = new AtomicLong();
+	private final Set<Long> prefetched = ConcurrentHashMap.newKeySet();
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder prefetchHits = new LongAdder();
+	private final LongAdder prefetchedCells = new LongAdder();
+
+	private long lookAhead = 500;
+	private double planeMargin = 64;
+	private int maxCells = 512;
+	private boolean enabled = true;
+
+	private Set<Long> visible = new HashSet<>();
+	private double[] center = null;
+	private double[] velocity = null;
+	private long time;
+
+	/**
+	 * @param img the non-volatile image whose cache backs the volatile
+	 *     image shown in BDV
+	 * @param sourceTransform source to global transform of the BDV source
+	 * @param numThreads
+	 */
+	public Prefetcher(
+			final CachedCellImg<?, ?> img,
+			final AffineTransform3D sourceTransform,
+			final int numThreads) {
+
+		cache = img.getCache();
+		grid = img.getCellGrid();
+		if (grid.numDimensions() != 3)
+			throw new IllegalArgumentException("Prefetching requires a 3D image, not " + grid.numDimensions() + "D.");
+		this.sourceTransform = sourceTransform.copy();
+		exec = new ThreadPoolExecutor(
+				numThreads,
+				numThreads,
+				0,
+				TimeUnit.MILLISECONDS,
+				new PriorityBlockingQueue<>(),
+				runnable -> {
+					final Thread thread = new Thread(runnable, "prefetcher");
+					thread.setDaemon(true);
+					thread.setPriority(Thread.MIN_PRIORITY);
+					return thread;
+				});
+	}
+
+	/**
+	 * Identity source transform and one thread.
+	 *
+	 * @param img
+	 */
+	public Prefetcher(final CachedCellImg<?, ?> img) {
+
+		this(img, new AffineTransform3D(), 1);
+	}
+
+	/**
+	 * @param lookAhead how far ahead of the current motion to prefetch in ms
+	 */
+	public void setLookAhead(final long lookAhead) {
+
+		this.lookAhead = lookAhead;
+	}
+
+	/**
+	 * @param planeMargin how far in front of and behind the current plane to
+	 *     prefetch in screen pixels
+	 */
+	public void setPlaneMargin(final double planeMargin) {
+
+		this.planeMargin = planeMargin;
+	}
+
+	/**
+	 * @param maxCells maximum number of cells to prefetch per transform change
+	 */
+	public void setMaxCells(final int maxCells) {
+
+		this.maxCells = maxCells;
+	}
+
+	/**
+	 * @param enabled if false, only count hits and misses, e.g. to compare
+	 *     the hit rate with and without prefetching
+	 */
+	public void setEnabled(final boolean enabled) {
+
+		this.enabled = enabled;
+	}
+
+	/**
+	 * Listen to the transform changes of a viewer.
+	 *
+	 * @param viewer
+	 */
+	public void install(final ViewerPanel viewer) {
+
+		viewer.transformListeners().add(
+				viewerTransform -> transformChanged(
+						viewerTransform,
+						viewer.getDisplay().getWidth(),
+						viewer.getDisplay().getHeight()));
+	}
+
+	/**
+	 * Bounding box in source coordinates of a screen box.
+	 */
+	private RealInterval sourceBox(
+			final AffineTransform3D screenToSource,
+			final double[] screenMin,
+			final double[] screenMax) {
+
+		final double[] min = {Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE};
+		final double[] max = {-Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE};
+		final double[] corner = new double[3];
+		for (int i = 0; i < 8; ++i) {
+			for (int d = 0; d < 3; ++d)
+				corner[d] = (i >> d & 1) == 0 ? screenMin[d] : screenMax[d];
+			screenToSource.apply(corner, corner);
+			for (int d = 0; d < 3; ++d) {
+				min[d] = Math.min(min[d], corner[d]);
+				max[d] = Math.max(max[d], corner[d]);
+			}
+		}
+		return new FinalRealInterval(min, max);
+	}
+
+	/**
+	 * Add the indices of all cells that intersect a box in source
+	 * coordinates and are not excluded, until indices contains maxSize
+	 * cells.
+	 */
+	private void cells(
+			final RealInterval box,
+			final Set<Long> exclude,
+			final Set<Long> indices,
+			final int maxSize) {
+
+		final int n = grid.numDimensions();
+		final long[] gridDimensions = grid.getGridDimensions();
+		final long[] min = new long[n];
+		final long[] max = new long[n];
+		for (int d = 0; d < n; ++d) {
+			final int cellSize = grid.cellDimension(d);
+			min[d] = Math.max(0, (long)Math.floor(box.realMin(d) / cellSize));
+			max[d] = Math.min(gridDimensions[d] - 1, (long)Math.floor(box.realMax(d) / cellSize));
+			if (min[d] > max[d])
+				return;
+		}
+
+		final long[] position = min.clone();
+		while (indices.size() < maxSize) {
+			final long index = IntervalIndexer.positionToIndex(position, gridDimensions);
+			if (!exclude.contains(index))
+				indices.add(index);
+			int d = 0;
+			for (; d < n && ++position[d] > max[d]; ++d)
+				position[d] = min[d];
+			if (d == n)
+				return;
+		}
+	}
+
+	/**
+	 * Update metrics and prefetch for a new viewer transform.
+	 *
+	 * @param viewerTransform global to screen transform
+	 * @param width of the screen
+	 * @param height of the screen
+	 */
+	public synchronized void transformChanged(
+			final AffineTransform3D viewerTransform,
+			final int width,
+			final int height) {
+
+		final AffineTransform3D screenToSource = viewerTransform.copy().concatenate(sourceTransform).inverse();
+		final RealInterval visibleBox = sourceBox(screenToSource, new double[] {0, 0, -0.5}, new double[] {width, height, 0.5});
+
+		/* count hits and misses of cells that became visible */
+		final HashSet<Long> nowVisible = new HashSet<>();
+		cells(visibleBox, Collections.emptySet(), nowVisible, Integer.MAX_VALUE);
+		for (final Long index : nowVisible) {
+			if (visible.contains(index))
+				continue;
+			if (cache.getIfPresent(index) == null)
+				misses.increment();
+			else {
+				hits.increment();
+				if (prefetched.remove(index))
+					prefetchHits.increment();
+			}
+		}
+		visible = nowVisible;
+
+		if (!enabled)
+			return;
+
+		/* velocity of the screen center in source coordinates per ms */
+		final long now = System.currentTimeMillis();
+		final double[] newCenter = {0.5 * width, 0.5 * height, 0};
+		screenToSource.apply(newCenter, newCenter);
+		final long dt = now - time;
+		if (center == null || dt > 250 || dt <= 0)
+			velocity = new double[3];
+		else
+			for (int d = 0; d < 3; ++d)
+				velocity[d] = 0.5 * velocity[d] + 0.5 * (newCenter[d] - center[d]) / dt;
+		center = newCenter;
+		time = now;
+
+		/* drop pending prefetches of the previous transform */
+		final long g = generation.incrementAndGet();
+		exec.getQueue().clear();
+
+		/*
+		 * the region swept by the visible box when moving ahead along the
+		 * motion, without the visible box, i.e. one slab beyond the visible
+		 * box per dimension with motion
+		 */
+		final double[] sweptMin = new double[3];
+		final double[] sweptMax = new double[3];
+		for (int d = 0; d < 3; ++d) {
+			final double shift = velocity[d] * lookAhead;
+			sweptMin[d] = Math.min(visibleBox.realMin(d), visibleBox.realMin(d) + shift);
+			sweptMax[d] = Math.max(visibleBox.realMax(d), visibleBox.realMax(d) + shift);
+		}
+		final HashSet<Long> ahead = new HashSet<>();
+		for (int d = 0; d < 3; ++d) {
+			final double shift = velocity[d] * lookAhead;
+			if (shift == 0)
+				continue;
+			final double[] slabMin = sweptMin.clone();
+			final double[] slabMax = sweptMax.clone();
+			if (shift > 0)
+				slabMin[d] = visibleBox.realMax(d);
+			else
+				slabMax[d] = visibleBox.realMin(d);
+			cells(new FinalRealInterval(slabMin, slabMax), nowVisible, ahead, maxCells);
+		}
+
+		/* the planes in front of and behind the visible plane */
+		final HashSet<Long> adjacent = new HashSet<>();
+		final HashSet<Long> visibleOrAhead = new HashSet<>(nowVisible);
+		visibleOrAhead.addAll(ahead);
+		cells(
+				sourceBox(screenToSource, new double[] {0, 0, -planeMargin}, new double[] {width, height, planeMargin}),
+				visibleOrAhead,
+				adjacent,
+				maxCells - ahead.size());
+
+		for (final Long index : ahead)
+			exec.execute(new PrefetchTask(index, AHEAD, g));
+		for (final Long index : adjacent)
+			exec.execute(new PrefetchTask(index, ADJACENT, g));
+	}
+
+	public long getHits() {
+
+		return hits.sum();
+	}
+
+	public long getMisses() {
+
+		return misses.sum();
+	}
+
+	/**
+	 * @return the number of visible cells that were loaded by the prefetcher
+	 */
+	public long getPrefetchHits() {
+
+		return prefetchHits.sum();
+	}
+
+	/**
+	 * @return the number of cells that were loaded by the prefetcher
+	 */
+	public long getPrefetchedCells() {
+
+		return prefetchedCells.sum();
+	}
+
+	/**
+	 * @return the fraction of cells that were loaded when they became visible
+	 */
+	public double getHitRate() {
+
+		final long h = getHits();
+		final long n = h + getMisses();
+		return n == 0 ? 0 : (double)h / n;
+	}
+
+	public String status() {
+
+		return String.format(
+				"visible cells: %d hits, %d misses, hit rate %.1f%%, prefetched: %d cells, %d of them became visible",
+				getHits(),
+				getMisses(),
+				100 * getHitRate(),
+				getPrefetchedCells(),
+				getPrefetchHits());
+	}
+
+	public void shutdown() {
+
+		exec.shutdownNow();
+	}
+}
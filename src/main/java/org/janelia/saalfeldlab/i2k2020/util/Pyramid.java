@@ -0,0 +1,402 @@
+package org.janelia.saalfeldlab.i2k2020.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.Type;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+/**
+ * Blockwise generation of multiscale pyramids s1..sN from s0.
+ *
+ * Levels are generated in passes of several levels each.  A pass splits
+ * its input level into regions of blockSize &times; factors^levels, reads
+ * each region once, and writes all levels of the pass from it.  The next
+ * pass reads the last level of the previous pass.  Memory per task is the
+ * size of one such region, e.g. 64&sup3; blocks and 3 levels per pass of
+ * 2&times;2&times;2 downsampling read 512&sup3; voxels per task.
+ *
+ * Intensities are averaged, labels use the most frequent value in each
+ * window.  Incomplete windows at the border use the voxels that exist.
+ *
+ * @author Stephan Saalfeld
+ */
+public interface Pyramid {
+
+	/**
+	 * Iterate over the window of source voxels that contribute to the
+	 * current position of a target cursor.
+	 */
+	static <T> void window(
+			final Cursor<?> target,
+			final RandomAccess<T> source,
+			final long[] sourceMax,
+			final int[] factors,
+			final long[] min,
+			final long[] max,
+			final Consumer<T> action) {
+
+		final int n = min.length;
+		for (int d = 0; d < n; ++d) {
+			min[d] = target.getLongPosition(d) * factors[d];
+			max[d] = Math.min(min[d] + factors[d] - 1, sourceMax[d]);
+		}
+		source.setPosition(min);
+		for (int d = 0; d < n;) {
+			action.accept(source.get());
+			for (d = 0; d < n; ++d) {
+				source.fwd(d);
+				if (source.getLongPosition(d) <= max[d])
+					break;
+				else
+					source.setPosition(min[d], d);
+			}
+		}
+	}
+
+	/**
+	 * Downsample a zero-min source into a zero-min target by averaging.
+	 *
+	 * @param <T>
+	 * @param source
+	 * @param target
+	 * @param factors
+	 */
+	public static <T extends RealType<T>> void downsampleMean(
+			final RandomAccessibleInterval<T> source,
+			final RandomAccessibleInterval<T> target,
+			final int[] factors) {
+
+		final int n = source.numDimensions();
+		final long[] sourceMax = source.maxAsLongArray();
+		final long[] min = new long[n];
+		final long[] max = new long[n];
+		final RandomAccess<T> sourceAccess = source.randomAccess();
+		final double[] sum = new double[1];
+		final long[] count = new long[1];
+		final Consumer<T> add = s -> {
+			sum[0] += s.getRealDouble();
+			++count[0];
+		};
+		final Cursor<T> cursor = Views.flatIterable(target).localizingCursor();
+		while (cursor.hasNext()) {
+			final T t = cursor.next();
+			sum[0] = 0;
+			count[0] = 0;
+			window(cursor, sourceAccess, sourceMax, factors, min, max, add);
+			t.setReal(sum[0] / count[0]);
+		}
+	}
+
+	/**
+	 * Downsample a zero-min source into a zero-min target by picking the most
+	 * frequent value.  Ties go to the value that occurs first.
+	 *
+	 * @param <T>
+	 * @param source
+	 * @param target
+	 * @param factors
+	 */
+	public static <T extends Type<T>> void downsampleMode(
+			final RandomAccessibleInterval<T> source,
+			final RandomAccessibleInterval<T> target,
+			final int[] factors) {
+
+		final int n = source.numDimensions();
+		final long[] sourceMax = source.maxAsLongArray();
+		final long[] min = new long[n];
+		final long[] max = new long[n];
+		final RandomAccess<T> sourceAccess = source.randomAccess();
+
+		int windowSize = 1;
+		for (final int f : factors)
+			windowSize *= f;
+		final ArrayList<T> values = new ArrayList<>(windowSize);
+		for (int i = 0; i < windowSize; ++i)
+			values.add(sourceAccess.get().createVariable());
+		final int[] counts = new int[windowSize];
+		final int[] size = new int[1];
+
+		final Consumer<T> add = s -> {
+			for (int i = 0; i < size[0]; ++i) {
+				if (values.get(i).valueEquals(s)) {
+					++counts[i];
+					return;
+				}
+			}
+			values.get(size[0]).set(s);
+			counts[size[0]++] = 1;
+		};
+		final Cursor<T> cursor = Views.flatIterable(target).localizingCursor();
+		while (cursor.hasNext()) {
+			final T t = cursor.next();
+			size[0] = 0;
+			window(cursor, sourceAccess, sourceMax, factors, min, max, add);
+			int mode = 0;
+			for (int i = 1; i < size[0]; ++i)
+				if (counts[i] > counts[mode])
+					mode = i;
+			t.set(values.get(mode));
+		}
+	}
+
+	/**
+	 * Dimensions of the next coarser level.
+	 *
+	 * @param dimensions
+	 * @param factors
+	 * @return
+	 */
+	public static long[] downsampledDimensions(final long[] dimensions, final int[] factors) {
+
+		final long[] downsampled = new long[dimensions.length];
+		for (int d = 0; d < dimensions.length; ++d)
+			downsampled[d] = (dimensions[d] + factors[d] - 1) / factors[d];
+		return downsampled;
+	}
+
+	/**
+	 * Create the datasets s1..sN in group next to an existing s0 with the same
+	 * block size, data type, and compression.  The cumulative downsampling
+	 * factors are stored in the attribute "downsamplingFactors".
+	 *
+	 * @param n5
+	 * @param group
+	 * @param s0Attributes
+	 * @param factors
+	 * @param numLevels
+	 * @throws IOException
+	 */
+	public static void createDatasets(
+			final N5Writer n5,
+			final String group,
+			final DatasetAttributes s0Attributes,
+			final int[] factors,
+			final int numLevels) throws IOException {
+
+		long[] dimensions = s0Attributes.getDimensions();
+		final long[] downsamplingFactors = new long[dimensions.length];
+		Arrays.fill(downsamplingFactors, 1);
+		for (int level = 1; level <= numLevels; ++level) {
+			dimensions = downsampledDimensions(dimensions, factors);
+			for (int d = 0; d < dimensions.length; ++d)
+				downsamplingFactors[d] *= factors[d];
+			final String dataset = group + "/s" + level;
+			n5.createDataset(
+					dataset,
+					dimensions,
+					s0Attributes.getBlockSize(),
+					s0Attributes.getDataType(),
+					s0Attributes.getCompression());
+			n5.setAttribute(dataset, "downsamplingFactors", downsamplingFactors);
+		}
+	}
+
+	/**
+	 * Returns the grid of regions for a pass that reads an input level with
+	 * the given dimensions and writes levels.
+	 *
+	 * @param dimensions of the input level
+	 * @param blockSize
+	 * @param factors
+	 * @param levels
+	 * @return
+	 * @throws IllegalArgumentException if a region does not fit into an
+	 *   {@link ArrayImg}
+	 */
+	public static List<long[][]> passGrid(
+			final long[] dimensions,
+			final int[] blockSize,
+			final int[] factors,
+			final int levels) {
+
+		final int[] regionSize = new int[dimensions.length];
+		long numElements = 1;
+		for (int d = 0; d < regionSize.length; ++d) {
+			/* regions never need to be larger than the input */
+			long size = blockSize[d];
+			for (int l = 0; l < levels && size < dimensions[d]; ++l)
+				size *= factors[d];
+			size = Math.min(size, dimensions[d]);
+			numElements *= size;
+			if (numElements > Integer.MAX_VALUE)
+				throw new IllegalArgumentException(
+						"Regions of " + levels + " levels of blocks " + Arrays.toString(blockSize) +
+						" downsampled by " + Arrays.toString(factors) +
+						" exceed " + Integer.MAX_VALUE + " voxels, use fewer levels per pass.");
+			regionSize[d] = (int)size;
+		}
+		return Grid.create(dimensions, regionSize);
+	}
+
+	/**
+	 * Checks that the regions of all passes of a pyramid fit into an
+	 * {@link ArrayImg} before any of them is processed.  The datasets must
+	 * exist, see
+	 * {@link #createDatasets(N5Writer, String, DatasetAttributes, int[], int)}.
+	 *
+	 * @param s0Dimensions dimensions of the full resolution level
+	 * @param n5
+	 * @param group
+	 * @param factors
+	 * @param numLevels
+	 * @param levelsPerPass
+	 * @throws IllegalArgumentException if a region does not fit
+	 */
+	public static void checkPasses(
+			final long[] s0Dimensions,
+			final N5Reader n5,
+			final String group,
+			final int[] factors,
+			final int numLevels,
+			final int levelsPerPass) {
+
+		long[] dimensions = s0Dimensions;
+		for (int firstLevel = 1; firstLevel <= numLevels; firstLevel += levelsPerPass) {
+			final int levels = Math.min(levelsPerPass, numLevels - firstLevel + 1);
+			final int[] blockSize = n5.getDatasetAttributes(group + "/s" + firstLevel).getBlockSize();
+			passGrid(dimensions, blockSize, factors, levels);
+			dimensions = n5.getDatasetAttributes(group + "/s" + (firstLevel + levels - 1)).getDimensions();
+		}
+	}
+
+	/**
+	 * Read one region of an input level once and write the corresponding
+	 * blocks of levels firstLevel..firstLevel + levels - 1.
+	 *
+	 * @param <T>
+	 * @param input the input level
+	 * @param n5
+	 * @param group
+	 * @param firstLevel the first level written by this pass
+	 * @param levels the number of levels written by this pass
+	 * @param factors
+	 * @param labels use the most frequent value instead of the mean
+	 * @param region as created by {@link #passGrid(long[], int[], int[], int)}
+	 * @throws IOException
+	 */
+	public static <T extends NativeType<T> & RealType<T>> void processRegion(
+			final RandomAccessibleInterval<T> input,
+			final N5Writer n5,
+			final String group,
+			final int firstLevel,
+			final int levels,
+			final int[] factors,
+			final boolean labels,
+			final long[][] region) throws IOException {
+
+		final T type = net.imglib2.util.Util.getTypeFromInterval(input).createVariable();
+		final ArrayImgFactory<T> factory = new ArrayImgFactory<>(type);
+		final int n = input.numDimensions();
+
+		/* read the region once */
+		RandomAccessibleInterval<T> source = factory.create(region[1]);
+		Util.copy(Views.offsetInterval(input, region[0], region[1]), source);
+
+		final long[] min = region[0].clone();
+		for (int level = firstLevel; level < firstLevel + levels; ++level) {
+
+			final DatasetAttributes attributes = n5.getDatasetAttributes(group + "/s" + level);
+			final int[] blockSize = attributes.getBlockSize();
+			final long[] levelDimensions = attributes.getDimensions();
+
+			/* downsample the previous level of the region */
+			final long[] size = new long[n];
+			for (int d = 0; d < n; ++d) {
+				min[d] /= factors[d];
+				size[d] = Math.min(
+						(source.dimension(d) + factors[d] - 1) / factors[d],
+						levelDimensions[d] - min[d]);
+			}
+			final ArrayImg<T, ?> target = factory.create(size);
+			if (labels)
+				downsampleMode(source, target, factors);
+			else
+				downsampleMean(source, target, factors);
+
+			/* write its blocks */
+			for (final long[][] block : Grid.create(size, blockSize)) {
+				final long[] gridPosition = new long[n];
+				for (int d = 0; d < n; ++d)
+					gridPosition[d] = (min[d] + block[0][d]) / blockSize[d];
+				N5Utils.saveBlock(
+						Views.offsetInterval(target, block[0], block[1]),
+						n5,
+						group + "/s" + level,
+						attributes,
+						gridPosition);
+			}
+
+			source = target;
+		}
+	}
+
+	/**
+	 * Generate levels s1..sN of a pyramid in group with a local
+	 * {@link ExecutorService}.  The datasets must exist, see
+	 * {@link #createDatasets(N5Writer, String, DatasetAttributes, int[], int)}.
+	 *
+	 * @param <T>
+	 * @param s0 the full resolution level, may be in another container
+	 * @param n5
+	 * @param group
+	 * @param factors
+	 * @param numLevels
+	 * @param levelsPerPass
+	 * @param labels
+	 * @param exec
+	 * @throws IOException
+	 * @throws InterruptedException
+	 * @throws ExecutionException
+	 */
+	public static <T extends NativeType<T> & RealType<T>> void build(
+			final RandomAccessibleInterval<T> s0,
+			final N5Writer n5,
+			final String group,
+			final int[] factors,
+			final int numLevels,
+			final int levelsPerPass,
+			final boolean labels,
+			final ExecutorService exec) throws IOException, InterruptedException, ExecutionException {
+
+		checkPasses(s0.dimensionsAsLongArray(), n5, group, factors, numLevels, levelsPerPass);
+
+		RandomAccessibleInterval<T> input = s0;
+		for (int firstLevel = 1; firstLevel <= numLevels; firstLevel += levelsPerPass) {
+
+			final int levels = Math.min(levelsPerPass, numLevels - firstLevel + 1);
+			final int passFirstLevel = firstLevel;
+			final RandomAccessibleInterval<T> passInput = input;
+			final int[] blockSize = n5.getDatasetAttributes(group + "/s" + firstLevel).getBlockSize();
+
+			final ArrayList<Future<?>> futures = new ArrayList<>();
+			for (final long[][] region : passGrid(passInput.dimensionsAsLongArray(), blockSize, factors, levels))
+				futures.add(exec.submit(() -> {
+					processRegion(passInput, n5, group, passFirstLevel, levels, factors, labels, region);
+					return null;
+				}));
+			for (final Future<?> future : futures)
+				future.get();
+
+			input = N5Utils.open(n5, group + "/s" + (firstLevel + levels - 1));
+		}
+	}
+}
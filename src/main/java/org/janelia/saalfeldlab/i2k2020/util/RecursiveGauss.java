@@ -0,0 +1,247 @@
+package org.janelia.saalfeldlab.i2k2020.util;
+
+import java.util.Arrays;
+
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+/**
+ * Recursive (IIR) Gaussian convolution after Deriche (1993, Recursively
+ * implementing the Gaussian and its derivatives, INRIA RR-1893) with the
+ * 4th order coefficients used by ITK.  The cost per pixel is constant and
+ * does not depend on sigma.
+ *
+ * The block of input that is read is the same as for the FIR
+ * implementation with {@link net.imglib2.algorithm.gauss3.Gauss3#halfkernels(double[])},
+ * i.e. the output interval expanded by (int)(3 sigma + 0.5) in each
+ * dimension, and the boundary of that block is extended with its edge
+ * value.
+ *
+ * Accuracy: the maximum absolute difference of the 1D impulse response to
+ * the normalized sampled Gaussian kernel used by the FIR implementation is
+ * ~0.3% of the kernel peak at sigma 1, ~0.14% at sigma 3, ~0.07% at
+ * sigma 8, and &lt; 0.05% for sigma &gt;= 16.
+ */
+public interface RecursiveGauss {
+
+	/**
+	 * Deriche coefficients for the 0th order Gaussian at sigma = 1.
+	 */
+	static final double A1 = 1.3530, B1 = 1.8151, W1 = 0.6681, L1 = -1.3932;
+	static final double A2 = -0.3531, B2 = 0.0902, W2 = 2.0787, L2 = -1.3732;
+
+	/**
+	 * Returns the number of pixels that are read from the input on either
+	 * side of the output interval, same as the FIR implementation.
+	 *
+	 * @param sigma
+	 * @return
+	 */
+	public static int halo(final double sigma) {
+
+		return sigma > 0 ? Math.max(1, (int)(3 * sigma + 0.5)) : 0;
+	}
+
+	/**
+	 * Calculate the causal and anti-causal filter coefficients for a given
+	 * sigma, normalized to unit DC gain.
+	 *
+	 * @param sigma
+	 * @return {n0, n1, n2, n3, m1, m2, m3, m4, d1, d2, d3, d4,
+	 *     causal DC gain, anti-causal DC gain}
+	 */
+	public static double[] coefficients(final double sigma) {
+
+		final double sin1 = Math.sin(W1 / sigma);
+		final double sin2 = Math.sin(W2 / sigma);
+		final double cos1 = Math.cos(W1 / sigma);
+		final double cos2 = Math.cos(W2 / sigma);
+		final double exp1 = Math.exp(L1 / sigma);
+		final double exp2 = Math.exp(L2 / sigma);
+
+		final double n0 = A1 + A2;
+		final double n1 =
+				exp2 * (B2 * sin2 - (A2 + 2 * A1) * cos2) +
+				exp1 * (B1 * sin1 - (A1 + 2 * A2) * cos1);
+		final double n2 =
+				2 * exp1 * exp2 * ((A1 + A2) * cos2 * cos1 - B1 * cos2 * sin1 - B2 * cos1 * sin2) +
+				A2 * exp1 * exp1 +
+				A1 * exp2 * exp2;
+		final double n3 =
+				exp2 * exp1 * exp1 * (B2 * sin2 - A2 * cos2) +
+				exp1 * exp2 * exp2 * (B1 * sin1 - A1 * cos1);
+
+		final double d1 = -2 * (exp2 * cos2 + exp1 * cos1);
+		final double d2 = 4 * cos2 * cos1 * exp1 * exp2 + exp1 * exp1 + exp2 * exp2;
+		final double d3 = -2 * cos1 * exp1 * exp2 * exp2 - 2 * cos2 * exp2 * exp1 * exp1;
+		final double d4 = exp1 * exp1 * exp2 * exp2;
+
+		final double m1 = n1 - d1 * n0;
+		final double m2 = n2 - d2 * n0;
+		final double m3 = n3 - d3 * n0;
+		final double m4 = -d4 * n0;
+
+		final double sumD = 1 + d1 + d2 + d3 + d4;
+		final double sumN = n0 + n1 + n2 + n3;
+		final double sumM = m1 + m2 + m3 + m4;
+		final double norm = sumD / (sumN + sumM);
+
+		return new double[] {
+				n0 * norm, n1 * norm, n2 * norm, n3 * norm,
+				m1 * norm, m2 * norm, m3 * norm, m4 * norm,
+				d1, d2, d3, d4,
+				sumN * norm / sumD,
+				sumM * norm / sumD};
+	}
+
+	/**
+	 * Convolve a line in place.  The line is extended by its edge values.
+	 *
+	 * @param line
+	 * @param length
+	 * @param c coefficients as returned by {@link #coefficients(double)}
+	 * @param causal temporary buffer of at least length
+	 */
+	public static void convolveLine(
+			final double[] line,
+			final int length,
+			final double[] c,
+			final double[] causal) {
+
+		final double n0 = c[0], n1 = c[1], n2 = c[2], n3 = c[3];
+		final double m1 = c[4], m2 = c[5], m3 = c[6], m4 = c[7];
+		final double d1 = c[8], d2 = c[9], d3 = c[10], d4 = c[11];
+
+		/* causal */
+		double x1, x2, x3, x4, y1, y2, y3, y4;
+		x1 = x2 = x3 = line[0];
+		y1 = y2 = y3 = y4 = line[0] * c[12];
+		for (int i = 0; i < length; ++i) {
+			final double x = line[i];
+			final double y = n0 * x + n1 * x1 + n2 * x2 + n3 * x3 - d1 * y1 - d2 * y2 - d3 * y3 - d4 * y4;
+			causal[i] = y;
+			x3 = x2; x2 = x1; x1 = x;
+			y4 = y3; y3 = y2; y2 = y1; y1 = y;
+		}
+
+		/* anti-causal, sum up */
+		x1 = x2 = x3 = x4 = line[length - 1];
+		y1 = y2 = y3 = y4 = line[length - 1] * c[13];
+		for (int i = length - 1; i >= 0; --i) {
+			final double x = line[i];
+			final double y = m1 * x1 + m2 * x2 + m3 * x3 + m4 * x4 - d1 * y1 - d2 * y2 - d3 * y3 - d4 * y4;
+			line[i] = causal[i] + y;
+			x4 = x3; x3 = x2; x2 = x1; x1 = x;
+			y4 = y3; y3 = y2; y2 = y1; y1 = y;
+		}
+	}
+
+	/**
+	 * Returns the number of elements of a block as an int, or throws an
+	 * {@link IllegalArgumentException} if the block does not fit into an
+	 * array.
+	 */
+	static int checkedSize(final long[] dimensions, final double[] sigmas) {
+
+		long size = 1;
+		for (final long d : dimensions) {
+			size *= d;
+			if (size > Integer.MAX_VALUE - 8)
+				throw new IllegalArgumentException(
+						"Block of " + Arrays.toString(dimensions) + " pixels for sigmas " + Arrays.toString(sigmas) +
+						" exceeds the maximum array size, use smaller blocks.");
+		}
+		return (int)size;
+	}
+
+	/**
+	 * Convolve an n-dimensional input with a Gaussian kernel and write the
+	 * result into output.  Dimensions with sigma &lt;= 0 are not convolved.
+	 *
+	 * Dimensions are convolved one after the other, and the halo of each
+	 * convolved dimension is cropped before the next dimension, so the
+	 * padded input block is never held in memory, only the output block
+	 * padded in the dimensions that are not convolved yet.  The first
+	 * dimension is convolved while the input is read.
+	 *
+	 * @param <S>
+	 * @param <T>
+	 * @param sigmas
+	 * @param input
+	 * @param output
+	 */
+	public static <S extends RealType<S>, T extends RealType<T>> void convolve(
+			final double[] sigmas,
+			final RandomAccessible<S> input,
+			final RandomAccessibleInterval<T> output) {
+
+		final int n = output.numDimensions();
+		final int[] halo = new int[n];
+		final long[] dimensions = new long[n];
+		final long[] min = new long[n];
+		final long[] max = new long[n];
+		for (int d = 0; d < n; ++d) {
+			halo[d] = halo(sigmas[d]);
+			dimensions[d] = output.dimension(d) + 2 * halo[d];
+			min[d] = output.min(d) - halo[d];
+			max[d] = output.max(d) + halo[d];
+		}
+
+		int maxLength = 0;
+		for (int d = 0; d < n; ++d)
+			maxLength = Math.max(maxLength, checkedSize(new long[] {dimensions[d]}, sigmas));
+		final double[] line = new double[maxLength];
+		final double[] causal = new double[maxLength];
+
+		/* read lines along dimension 0, convolve, and keep their center */
+		final int length0 = (int)dimensions[0];
+		final int width = (int)output.dimension(0);
+		dimensions[0] = width;
+		double[] data = new double[checkedSize(dimensions, sigmas)];
+		final double[] c0 = sigmas[0] > 0 ? coefficients(sigmas[0]) : null;
+		final Cursor<S> inputCursor = Views.flatIterable(Views.interval(input, new FinalInterval(min, max))).cursor();
+		for (int offset = 0; offset < data.length; offset += width) {
+			for (int i = 0; i < length0; ++i)
+				line[i] = inputCursor.next().getRealDouble();
+			if (c0 != null)
+				convolveLine(line, length0, c0, causal);
+			System.arraycopy(line, halo[0], data, offset, width);
+		}
+
+		/* convolve the other dimensions and crop their halo */
+		int stride = width;
+		for (int d = 1; d < n; ++d) {
+
+			final int length = (int)dimensions[d];
+			final int size = (int)output.dimension(d);
+			if (sigmas[d] > 0) {
+				final double[] c = coefficients(sigmas[d]);
+				dimensions[d] = size;
+				final double[] cropped = new double[checkedSize(dimensions, sigmas)];
+				final int numOuter = data.length / stride / length;
+				for (int outer = 0; outer < numOuter; ++outer) {
+					final int from = outer * stride * length;
+					final int to = outer * stride * size;
+					for (int inner = 0; inner < stride; ++inner) {
+						for (int i = 0, j = from + inner; i < length; ++i, j += stride)
+							line[i] = data[j];
+						convolveLine(line, length, c, causal);
+						for (int i = halo[d], j = to + inner; i < halo[d] + size; ++i, j += stride)
+							cropped[j] = line[i];
+					}
+				}
+				data = cropped;
+			}
+			stride *= size;
+		}
+
+		/* copy into output */
+		final Cursor<T> outputCursor = Views.flatIterable(output).cursor();
+		for (int i = 0; i < data.length; ++i)
+			outputCursor.next().setReal(data[i]);
+	}
+}
@@ -0,0 +1,416 @@
+package org.janelia.saalfeldlab.i2k2020.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+import org.janelia.saalfeldlab.n5.Compression;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.DefaultBlockWriter;
+import org.janelia.saalfeldlab.n5.GsonKeyValueN5Reader;
+import org.janelia.saalfeldlab.n5.N5FSReader;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.N5URI;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.basictypeaccess.array.ByteArray;
+import net.imglib2.img.basictypeaccess.array.DoubleArray;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.img.basictypeaccess.array.IntArray;
+import net.imglib2.img.basictypeaccess.array.LongArray;
+import net.imglib2.img.basictypeaccess.array.ShortArray;
+import net.imglib2.type.NativeType;
+import net.imglib2.view.Views;
+
+/**
+ * Methods for resumable block-wise jobs.  An output block that is complete
+ * is skipped, so a job that died halfway through can be restarted and only
+ * processes the blocks that are missing.
+ *
+ * For this to work, resumable jobs must write all blocks, including empty
+ * ones, and blocks must not be left half-written.  Blocks in N5 containers
+ * on the file system are encoded into a temporary file and atomically
+ * moved into place, and object stores like S3 or GCS replace objects
+ * atomically, so on these backends a block that exists is complete and
+ * nothing has to be read.  Other backends write blocks directly, there a
+ * block is complete if it can be decoded.  Decoding can also be requested
+ * for atomic backends, e.g. to validate blocks written by other tools.
+ *
+ * @author Stephan Saalfeld
+ */
+public interface Resume {
+
+	/**
+	 * Whether blocks appear atomically in n5, i.e. a block that exists is
+	 * complete.  True for N5 containers on the file system, whose resumable
+	 * blocks are moved into place atomically, and for object stores.
+	 *
+	 * @param n5
+	 * @return
+	 */
+	public static boolean isAtomic(final N5Reader n5) {
+
+		return
+				n5 instanceof N5FSReader ||
+				n5 instanceof N5FSWriter ||
+				n5 instanceof GsonKeyValueN5Reader && !"file".equals(n5.getURI().getScheme());
+	}
+
+	/**
+	 * Returns true if the block at gridPosition exists and can be decoded.
+	 *
+	 * @param n5
+	 * @param dataset
+	 * @param attributes
+	 * @param gridPosition
+	 * @return
+	 */
+	public static boolean isValid(
+			final N5Reader n5,
+			final String dataset,
+			final DatasetAttributes attributes,
+			final long... gridPosition) {
+
+		try {
+			return n5.readBlock(dataset, attributes, gridPosition) != null;
+		} catch (final Exception e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Returns true if the block at gridPosition is complete, i.e. it exists
+	 * in an {@link #isAtomic(N5Reader) atomic} container, or it
+	 * {@link #isValid(N5Reader, String, DatasetAttributes, long...) can be
+	 * decoded} otherwise.
+	 *
+	 * @param n5
+	 * @param dataset
+	 * @param attributes
+	 * @param gridPosition
+	 * @return
+	 */
+	public static boolean isComplete(
+			final N5Reader n5,
+			final String dataset,
+			final DatasetAttributes attributes,
+			final long... gridPosition) {
+
+		if (!isAtomic(n5))
+			return isValid(n5, dataset, attributes, gridPosition);
+
+		if (n5 instanceof N5FSReader || n5 instanceof N5FSWriter)
+			return Files.isRegularFile(blockPath(n5, dataset, gridPosition));
+
+		final GsonKeyValueN5Reader kv = (GsonKeyValueN5Reader)n5;
+		return kv.getKeyValueAccess().isFile(kv.absoluteDataBlockPath(N5URI.normalizeGroupPath(dataset), gridPosition));
+	}
+
+	/**
+	 * Returns the grid blocks, as created by {@link Grid#create}, whose output
+	 * block is not complete, in the order of grid.  Blocks are checked in
+	 * parallel.
+	 *
+	 * @param n5
+	 * @param dataset
+	 * @param grid
+	 * @return
+	 * @throws IOException
+	 */
+	public static List<long[][]> missing(
+			final N5Reader n5,
+			final String dataset,
+			final List<long[][]> grid) throws IOException {
+
+		return missing(n5, dataset, grid, false);
+	}
+
+	/**
+	 * Returns the grid blocks, as created by {@link Grid#create}, whose output
+	 * block is not complete, in the order of grid.  Blocks are checked in
+	 * parallel.
+	 *
+	 * @param n5
+	 * @param dataset
+	 * @param grid
+	 * @param validate decode blocks even in atomic containers, a block that
+	 *     cannot be decoded is missing
+	 * @return
+	 * @throws IOException
+	 */
+	public static List<long[][]> missing(
+			final N5Reader n5,
+			final String dataset,
+			final List<long[][]> grid,
+			final boolean validate) throws IOException {
+
+		final DatasetAttributes attributes = n5.getDatasetAttributes(dataset);
+		return grid
+				.parallelStream()
+				.filter(gridBlock -> validate ?
+						!isValid(n5, dataset, attributes, gridBlock[2]) :
+						!isComplete(n5, dataset, attributes, gridBlock[2]))
+				.collect(Collectors.toList());
+	}
+
+	@SuppressWarnings("rawtypes")
+	static ArrayDataAccess access(final Object data) {
+
+		if (data instanceof byte[])
+			return new ByteArray((byte[])data);
+		else if (data instanceof short[])
+			return new ShortArray((short[])data);
+		else if (data instanceof int[])
+			return new IntArray((int[])data);
+		else if (data instanceof long[])
+			return new LongArray((long[])data);
+		else if (data instanceof float[])
+			return new FloatArray((float[])data);
+		else if (data instanceof double[])
+			return new DoubleArray((double[])data);
+		else
+			throw new IllegalArgumentException("Unsupported data " + data.getClass());
+	}
+
+	/**
+	 * Copy a block into a new {@link DataBlock} through an {@link ArrayImg}
+	 * on its data.
+	 *
+	 * @param <T>
+	 * @param block
+	 * @param attributes
+	 * @param gridPosition
+	 * @return
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public static <T extends NativeType<T>> DataBlock<?> dataBlock(
+			final RandomAccessibleInterval<T> block,
+			final DatasetAttributes attributes,
+			final long... gridPosition) {
+
+		final int n = block.numDimensions();
+		final int[] size = new int[n];
+		final long[] dimensions = new long[n];
+		for (int d = 0; d < n; ++d)
+			dimensions[d] = size[d] = (int)block.dimension(d);
+
+		final DataBlock<?> dataBlock = attributes.getDataType().createDataBlock(size, gridPosition);
+		final T type = net.imglib2.util.Util.getTypeFromInterval(block);
+		final ArrayImg<T, ?> img = new ArrayImg(access(dataBlock.getData()), dimensions, type.getEntitiesPerPixel());
+		img.setLinkedType((T)type.getNativeTypeFactory().createLinkedType((ArrayImg)img));
+		Util.copy(Views.zeroMin(block), img);
+
+		return dataBlock;
+	}
+
+	/**
+	 * Returns the path of a block in an N5 container on the file system.
+	 *
+	 * @param n5
+	 * @param dataset
+	 * @param gridPosition
+	 * @return
+	 */
+	public static Path blockPath(
+			final N5Reader n5,
+			final String dataset,
+			final long... gridPosition) {
+
+		Path path = Paths.get(n5.getURI()).resolve(dataset.replaceFirst("^/+", ""));
+		for (final long p : gridPosition)
+			path = path.resolve(Long.toString(p));
+		return path;
+	}
+
+	/**
+	 * Write an encoded block into a temporary file next to path and
+	 * atomically move it into place.
+	 *
+	 * @param path
+	 * @param encoder writes the encoded block into the temporary file
+	 * @throws IOException
+	 */
+	public static void writeAtomically(
+			final Path path,
+			final BlockEncoder encoder) throws IOException {
+
+		Files.createDirectories(path.getParent());
+		final Path tmp = Files.createTempFile(path.getParent(), "." + path.getFileName(), ".tmp");
+		try {
+			try (final OutputStream out = Files.newOutputStream(tmp)) {
+				encoder.write(out);
+			}
+			Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+	}
+
+	@FunctionalInterface
+	public static interface BlockEncoder {
+
+		public void write(final OutputStream out) throws IOException;
+	}
+
+	/**
+	 * Save a block like
+	 * {@link N5Utils#saveBlock(RandomAccessibleInterval, N5Writer, String, DatasetAttributes, long[])}
+	 * but atomically for N5 containers on the file system.  Empty blocks are
+	 * written too.
+	 *
+	 * @param <T>
+	 * @param block
+	 * @param n5
+	 * @param dataset
+	 * @param attributes
+	 * @param gridPosition
+	 * @throws IOException
+	 */
+	public static <T extends NativeType<T>> void saveBlock(
+			final RandomAccessibleInterval<T> block,
+			final N5Writer n5,
+			final String dataset,
+			final DatasetAttributes attributes,
+			final long... gridPosition) throws IOException {
+
+		if (!(n5 instanceof N5FSWriter)) {
+			N5Utils.saveBlock(block, n5, dataset, attributes, gridPosition);
+			return;
+		}
+
+		final DataBlock<?> dataBlock = dataBlock(block, attributes, gridPosition);
+
+		/* encode into a temporary file and move it into place */
+		writeAtomically(
+				blockPath((N5FSWriter)n5, dataset, gridPosition),
+				out -> DefaultBlockWriter.writeBlock(out, attributes, dataBlock));
+	}
+
+	static <T extends NativeType<T>> DatasetAttributes createDatasetIfMissing(
+			final RandomAccessibleInterval<T> img,
+			final N5Writer n5,
+			final String dataset,
+			final int[] blockSize,
+			final Compression compression) throws IOException {
+
+		if (!n5.datasetExists(dataset))
+			n5.createDataset(
+					dataset,
+					img.dimensionsAsLongArray(),
+					blockSize,
+					N5Utils.dataType(net.imglib2.util.Util.getTypeFromInterval(img)),
+					compression);
+
+		return n5.getDatasetAttributes(dataset);
+	}
+
+	static <T extends NativeType<T>> boolean saveIfMissing(
+			final RandomAccessibleInterval<T> zeroMinImg,
+			final N5Writer n5,
+			final String dataset,
+			final DatasetAttributes attributes,
+			final long[][] gridBlock) throws IOException {
+
+		if (isComplete(n5, dataset, attributes, gridBlock[2]))
+			return false;
+
+		saveBlock(
+				Views.offsetInterval(zeroMinImg, gridBlock[0], gridBlock[1]),
+				n5,
+				dataset,
+				attributes,
+				gridBlock[2]);
+		return true;
+	}
+
+	/**
+	 * Resumable version of
+	 * {@link N5Utils#save(RandomAccessibleInterval, N5Writer, String, int[], Compression)}.
+	 * If the dataset exists, only blocks that are not complete are saved.
+	 * Only the existence of the dataset is checked, not whether its
+	 * attributes match.
+	 *
+	 * @param <T>
+	 * @param img
+	 * @param n5
+	 * @param dataset
+	 * @param blockSize
+	 * @param compression
+	 * @return the number of blocks that were saved
+	 * @throws IOException
+	 */
+	public static <T extends NativeType<T>> int save(
+			final RandomAccessibleInterval<T> img,
+			final N5Writer n5,
+			final String dataset,
+			final int[] blockSize,
+			final Compression compression) throws IOException {
+
+		final RandomAccessibleInterval<T> zeroMinImg = Views.zeroMin(img);
+		final DatasetAttributes attributes = createDatasetIfMissing(zeroMinImg, n5, dataset, blockSize, compression);
+
+		int saved = 0;
+		for (final long[][] gridBlock : Grid.create(attributes.getDimensions(), blockSize))
+			if (saveIfMissing(zeroMinImg, n5, dataset, attributes, gridBlock))
+				++saved;
+
+		return saved;
+	}
+
+	/**
+	 * Resumable version of
+	 * {@link N5Utils#save(RandomAccessibleInterval, N5Writer, String, int[], Compression, ExecutorService)}.
+	 * If the dataset exists, only blocks that are not complete are saved.
+	 * Only the existence of the dataset is checked, not whether its
+	 * attributes match.
+	 *
+	 * @param <T>
+	 * @param img
+	 * @param n5
+	 * @param dataset
+	 * @param blockSize
+	 * @param compression
+	 * @param exec
+	 * @return the number of blocks that were saved
+	 * @throws IOException
+	 * @throws InterruptedException
+	 * @throws ExecutionException
+	 */
+	public static <T extends NativeType<T>> int save(
+			final RandomAccessibleInterval<T> img,
+			final N5Writer n5,
+			final String dataset,
+			final int[] blockSize,
+			final Compression compression,
+			final ExecutorService exec) throws IOException, InterruptedException, ExecutionException {
+
+		final RandomAccessibleInterval<T> zeroMinImg = Views.zeroMin(img);
+		final DatasetAttributes attributes = createDatasetIfMissing(zeroMinImg, n5, dataset, blockSize, compression);
+
+		final ArrayList<Future<Boolean>> futures = new ArrayList<>();
+		for (final long[][] gridBlock : Grid.create(attributes.getDimensions(), blockSize))
+			futures.add(exec.submit(() -> saveIfMissing(zeroMinImg, n5, dataset, attributes, gridBlock)));
+
+		int saved = 0;
+		for (final Future<Boolean> future : futures)
+			if (future.get())
+				++saved;
+
+		return saved;
+	}
+}
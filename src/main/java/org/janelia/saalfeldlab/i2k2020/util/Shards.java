@@ -0,0 +1,469 @@
+package org.janelia.saalfeldlab.i2k2020.util;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.janelia.saalfeldlab.n5.Compression;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.DefaultBlockReader;
+import org.janelia.saalfeldlab.n5.DefaultBlockWriter;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.cache.img.CellLoader;
+import net.imglib2.cache.img.SingleCellArrayImg;
+import net.imglib2.img.basictypeaccess.AccessFlags;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.type.NativeType;
+import net.imglib2.view.Views;
+
+/**
+ * Sharded N5 datasets on the file system.  A shard packs shardSize blocks
+ * into one file, which cuts the number of files by the number of blocks
+ * per shard.  The layout follows Zarr v3's sharding_indexed codec: the
+ * shard file is the concatenation of the encoded blocks, followed by an
+ * index with one (offset, length) pair of little-endian uint64 per block
+ * of the shard in x-fastest order.  Missing blocks have offset and length
+ * 2<sup>64</sup>-1.  Blocks are encoded like regular N5 blocks, and shards
+ * are stored where the regular N5 block at the shard's grid position would
+ * be.  The dataset attributes and "shardSize" in blocks are stored in a
+ * "sharding" attribute instead of the regular N5 dataset attributes, so
+ * regular N5 readers do not recognize the group as a dataset and cannot
+ * mistake shards for blocks.  Use shard-aware readers like
+ * {@link #open(N5Reader, String)}.
+ *
+ * Each shard is streamed by one task into a temporary file and atomically
+ * moved into place, so parallel writers never share a file as long as
+ * tasks are aligned with shards, see
+ * {@link #shardGrid(DatasetAttributes, int[])}.
+ *
+ * @author Stephan Saalfeld
+ */
+public interface Shards {
+
+	public static final String SHARDING_KEY = "sharding";
+	public static final String SHARD_SIZE_KEY = "shardSize";
+
+	public static final long MISSING = -1L;
+
+	/**
+	 * Create a sharded dataset.
+	 *
+	 * @param n5
+	 * @param dataset
+	 * @param dimensions
+	 * @param blockSize
+	 * @param shardSize number of blocks per shard in each dimension
+	 * @param dataType
+	 * @param compression
+	 * @return
+	 * @throws IOException
+	 */
+	public static DatasetAttributes createDataset(
+			final N5Writer n5,
+			final String dataset,
+			final long[] dimensions,
+			final int[] blockSize,
+			final int[] shardSize,
+			final DataType dataType,
+			final Compression compression) throws IOException {
+
+		final DatasetAttributes attributes = new DatasetAttributes(dimensions, blockSize, dataType, compression);
+		final HashMap<String, Object> sharding = new HashMap<>();
+		sharding.put(DatasetAttributes.DIMENSIONS_KEY, dimensions);
+		sharding.put(DatasetAttributes.BLOCK_SIZE_KEY, blockSize);
+		sharding.put(DatasetAttributes.DATA_TYPE_KEY, dataType);
+		sharding.put(DatasetAttributes.COMPRESSION_KEY, compression);
+		sharding.put(SHARD_SIZE_KEY, shardSize);
+
+		n5.createGroup(dataset);
+		n5.setAttribute(dataset, SHARDING_KEY, sharding);
+		return attributes;
+	}
+
+	/**
+	 * @return the attributes of a sharded dataset, or null if the dataset
+	 *     is not sharded
+	 */
+	public static DatasetAttributes getDatasetAttributes(final N5Reader n5, final String dataset) throws IOException {
+
+		final long[] dimensions = n5.getAttribute(dataset, SHARDING_KEY + "/" + DatasetAttributes.DIMENSIONS_KEY, long[].class);
+		if (dimensions == null)
+			return null;
+
+		return new DatasetAttributes(
+				dimensions,
+				n5.getAttribute(dataset, SHARDING_KEY + "/" + DatasetAttributes.BLOCK_SIZE_KEY, int[].class),
+				n5.getAttribute(dataset, SHARDING_KEY + "/" + DatasetAttributes.DATA_TYPE_KEY, DataType.class),
+				n5.getAttribute(dataset, SHARDING_KEY + "/" + DatasetAttributes.COMPRESSION_KEY, Compression.class));
+	}
+
+	/**
+	 * @return the shard size of a dataset in blocks, or null if the dataset
+	 *     is not sharded
+	 */
+	public static int[] getShardSize(final N5Reader n5, final String dataset) throws IOException {
+
+		return n5.getAttribute(dataset, SHARDING_KEY + "/" + SHARD_SIZE_KEY, int[].class);
+	}
+
+	/**
+	 * Returns the grid of shards as created by {@link Grid#create}, i.e.
+	 * offset and size in pixels and the grid position of each shard.  Use
+	 * this grid to assign tasks, each task writes complete shards.
+	 *
+	 * @param attributes
+	 * @param shardSize
+	 * @return
+	 */
+	public static List<long[][]> shardGrid(
+			final DatasetAttributes attributes,
+			final int[] shardSize) {
+
+		return Grid.create(attributes.getDimensions(), shardPixelSize(attributes.getBlockSize(), shardSize));
+	}
+
+	static int[] shardPixelSize(final int[] blockSize, final int[] shardSize) {
+
+		final int[] size = new int[blockSize.length];
+		for (int d = 0; d < size.length; ++d)
+			size[d] = blockSize[d] * shardSize[d];
+		return size;
+	}
+
+	static int numBlocks(final int[] shardSize) {
+
+		int numBlocks = 1;
+		for (final int s : shardSize)
+			numBlocks *= s;
+		return numBlocks;
+	}
+
+	/**
+	 * Write one shard of a zero-min image.
+	 *
+	 * @param <T>
+	 * @param zeroMinImg
+	 * @param n5
+	 * @param dataset
+	 * @param attributes
+	 * @param shardSize
+	 * @param shard as created by {@link #shardGrid(DatasetAttributes, int[])}
+	 * @throws IOException
+	 */
+	public static <T extends NativeType<T>> void writeShard(
+			final RandomAccessibleInterval<T> zeroMinImg,
+			final N5Writer n5,
+			final String dataset,
+			final DatasetAttributes attributes,
+			final int[] shardSize,
+			final long[][] shard) throws IOException {
+
+		final int n = shardSize.length;
+		final int[] blockSize = attributes.getBlockSize();
+		final int numBlocks = numBlocks(shardSize);
+
+		final ByteBuffer index = ByteBuffer.allocate(numBlocks * 16).order(ByteOrder.LITTLE_ENDIAN);
+		for (int i = 0; i < numBlocks * 2; ++i)
+			index.putLong(i * 8, MISSING);
+
+		/* stream the blocks into the temporary file and append the index */
+		Resume.writeAtomically(
+				Resume.blockPath(n5, dataset, shard[2]),
+				os -> {
+					final CountingOutputStream out = new CountingOutputStream(new BufferedOutputStream(os));
+					final long[] blockMin = new long[n];
+					for (final long[][] block : Grid.create(shard[1], blockSize)) {
+
+						/* block position in the shard and in the dataset */
+						int i = 0;
+						for (int d = n - 1; d >= 0; --d)
+							i = i * shardSize[d] + (int)block[2][d];
+						final long[] gridPosition = new long[n];
+						for (int d = 0; d < n; ++d) {
+							blockMin[d] = shard[0][d] + block[0][d];
+							gridPosition[d] = shard[2][d] * shardSize[d] + block[2][d];
+						}
+
+						final DataBlock<?> dataBlock = Resume.dataBlock(
+								Views.offsetInterval(zeroMinImg, blockMin, block[1]),
+								attributes,
+								gridPosition);
+						final long offset = out.getCount();
+						DefaultBlockWriter.writeBlock(out, attributes, dataBlock);
+						index.putLong(i * 16, offset);
+						index.putLong(i * 16 + 8, out.getCount() - offset);
+					}
+					out.write(index.array());
+					out.flush();
+				});
+	}
+
+	/**
+	 * Counts the bytes written into a stream.  Closing it only flushes the
+	 * stream because block writers close their output after each block.
+	 */
+	static class CountingOutputStream extends FilterOutputStream {
+
+		private long count = 0;
+
+		CountingOutputStream(final OutputStream out) {
+
+			super(out);
+		}
+
+		public long getCount() {
+
+			return count;
+		}
+
+		@Override
+		public void write(final int b) throws IOException {
+
+			out.write(b);
+			++count;
+		}
+
+		@Override
+		public void write(final byte[] b, final int off, final int len) throws IOException {
+
+			out.write(b, off, len);
+			count += len;
+		}
+
+		@Override
+		public void close() throws IOException {
+
+			flush();
+		}
+	}
+
+	/**
+	 * Returns true if the shard file exists and has an index.  Shards are
+	 * moved into place atomically, so such shards are complete.
+	 */
+	public static boolean isComplete(
+			final N5Reader n5,
+			final String dataset,
+			final int[] shardSize,
+			final long... shardPosition) {
+
+		try {
+			return Files.size(Resume.blockPath(n5, dataset, shardPosition)) >= numBlocks(shardSize) * 16L;
+		} catch (final IOException e) {
+			return false;
+		}
+	}
+
+	static void readFully(
+			final FileChannel channel,
+			final ByteBuffer buffer,
+			final long position) throws IOException {
+
+		while (buffer.hasRemaining())
+			if (channel.read(buffer, position + buffer.position()) < 0)
+				throw new IOException("Truncated shard");
+	}
+
+	/**
+	 * Read a block from a sharded dataset.
+	 *
+	 * @param n5
+	 * @param dataset
+	 * @param attributes
+	 * @param shardSize
+	 * @param gridPosition of the block
+	 * @return the block or null if it does not exist
+	 * @throws IOException
+	 */
+	public static DataBlock<?> readBlock(
+			final N5Reader n5,
+			final String dataset,
+			final DatasetAttributes attributes,
+			final int[] shardSize,
+			final long... gridPosition) throws IOException {
+
+		final int n = gridPosition.length;
+		final long[] shardPosition = new long[n];
+		int i = 0;
+		for (int d = n - 1; d >= 0; --d) {
+			shardPosition[d] = gridPosition[d] / shardSize[d];
+			i = i * shardSize[d] + (int)(gridPosition[d] % shardSize[d]);
+		}
+
+		try (final FileChannel channel = FileChannel.open(Resume.blockPath(n5, dataset, shardPosition), StandardOpenOption.READ)) {
+
+			final ByteBuffer entry = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+			readFully(channel, entry, channel.size() - numBlocks(shardSize) * 16L + i * 16L);
+			final long offset = entry.getLong(0);
+			final long length = entry.getLong(8);
+			if (offset == MISSING)
+				return null;
+
+			final ByteBuffer bytes = ByteBuffer.allocate((int)length);
+			readFully(channel, bytes, offset);
+
+			return DefaultBlockReader.readBlock(new ByteArrayInputStream(bytes.array()), attributes, gridPosition);
+
+		} catch (final NoSuchFileException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Save an image as a sharded dataset with one task per shard.  When
+	 * resuming, complete shards are skipped.
+	 *
+	 * @param <T>
+	 * @param img
+	 * @param n5 must be on the local file system
+	 * @param dataset
+	 * @param blockSize
+	 * @param shardSize number of blocks per shard in each dimension
+	 * @param compression
+	 * @param resume
+	 * @param exec
+	 * @return the number of shards that were saved
+	 * @throws IOException
+	 * @throws InterruptedException
+	 * @throws ExecutionException
+	 */
+	public static <T extends NativeType<T>> int save(
+			final RandomAccessibleInterval<T> img,
+			final N5Writer n5,
+			final String dataset,
+			final int[] blockSize,
+			final int[] shardSize,
+			final Compression compression,
+			final boolean resume,
+			final ExecutorService exec) throws IOException, InterruptedException, ExecutionException {
+
+		final RandomAccessibleInterval<T> zeroMinImg = Views.zeroMin(img);
+		final DatasetAttributes attributes;
+		final DatasetAttributes existing = resume ? getDatasetAttributes(n5, dataset) : null;
+		if (existing != null) {
+			/* shards of the existing dataset must be read and written with its shard size */
+			final int[] existingShardSize = getShardSize(n5, dataset);
+			if (!Arrays.equals(existingShardSize, shardSize))
+				throw new IllegalArgumentException(
+						"Cannot resume " + dataset + " with shard size " + Arrays.toString(shardSize) +
+						", it was created with shard size " + Arrays.toString(existingShardSize) + ".");
+			attributes = existing;
+		} else
+			attributes = createDataset(
+					n5,
+					dataset,
+					zeroMinImg.dimensionsAsLongArray(),
+					blockSize,
+					shardSize,
+					N5Utils.dataType(net.imglib2.util.Util.getTypeFromInterval(zeroMinImg)),
+					compression);
+
+		final ArrayList<Future<Boolean>> futures = new ArrayList<>();
+		for (final long[][] shard : shardGrid(attributes, shardSize))
+			futures.add(exec.submit(() -> {
+				if (resume && isComplete(n5, dataset, shardSize, shard[2]))
+					return false;
+				writeShard(zeroMinImg, n5, dataset, attributes, shardSize, shard);
+				return true;
+			}));
+
+		int saved = 0;
+		for (final Future<Boolean> future : futures)
+			if (future.get())
+				++saved;
+
+		return saved;
+	}
+
+	/**
+	 * A {@link CellLoader} for cells that match the blocks of a sharded
+	 * dataset.
+	 */
+	public static class Loader<T extends NativeType<T>> implements CellLoader<T> {
+
+		private final N5Reader n5;
+		private final String dataset;
+		private final DatasetAttributes attributes;
+		private final int[] shardSize;
+
+		public Loader(
+				final N5Reader n5,
+				final String dataset,
+				final DatasetAttributes attributes,
+				final int[] shardSize) {
+
+			this.n5 = n5;
+			this.dataset = dataset;
+			this.attributes = attributes;
+			this.shardSize = shardSize;
+		}
+
+		@Override
+		public void load(final SingleCellArrayImg<T, ?> cell) throws IOException {
+
+			final int[] blockSize = attributes.getBlockSize();
+			final long[] gridPosition = new long[cell.numDimensions()];
+			for (int d = 0; d < gridPosition.length; ++d)
+				gridPosition[d] = cell.min(d) / blockSize[d];
+
+			final DataBlock<?> block = readBlock(n5, dataset, attributes, shardSize, gridPosition);
+			if (block == null)
+				return;
+
+			final Object storage = ((ArrayDataAccess<?>)cell.update(null)).getCurrentStorageArray();
+			System.arraycopy(block.getData(), 0, storage, 0, Array.getLength(storage));
+		}
+	}
+
+	/**
+	 * Open a sharded dataset as a {@link CachedCellImg}.
+	 *
+	 * @param <T>
+	 * @param n5
+	 * @param dataset
+	 * @return
+	 * @throws IOException
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T extends NativeType<T>> CachedCellImg<T, ?> open(
+			final N5Reader n5,
+			final String dataset) throws IOException {
+
+		final DatasetAttributes attributes = getDatasetAttributes(n5, dataset);
+		final int[] shardSize = getShardSize(n5, dataset);
+		if (attributes == null || shardSize == null)
+			throw new IOException("Dataset " + dataset + " is not sharded.");
+		final T type = (T)N5Utils.type(attributes.getDataType());
+
+		return Lazy.createImg(
+				new FinalInterval(attributes.getDimensions()),
+				attributes.getBlockSize(),
+				type,
+				AccessFlags.setOf(),
+				new Loader<>(n5, dataset, attributes, shardSize));
+	}
+}
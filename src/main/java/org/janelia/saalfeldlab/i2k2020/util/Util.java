@@ -52,13 +52,17 @@ public interface Util {
 
 	/**
 	 * Materialize the first 2D slice of a {@link RandomAccessibleInterval}
-	 * of {@link FloatType} into a new ImageJ {@link FloatProcessor}.
+	 * of {@link FloatType} into an existing ImageJ {@link FloatProcessor} of
+	 * the same size.
 	 *
 	 * @param source
-	 * @return
+	 * @param target
+	 * @return target
 	 */
-	public static FloatProcessor materialize(final RandomAccessibleInterval<FloatType> source) {
-		final FloatProcessor target = new FloatProcessor((int) source.dimension(0), (int) source.dimension(1));
+	public static FloatProcessor materialize(
+			final RandomAccessibleInterval<FloatType> source,
+			final FloatProcessor target) {
+
 		Util.copy(
 				Views.zeroMin(source),
 				ArrayImgs.floats(
@@ -67,4 +71,18 @@ public interface Util {
 						target.getHeight()));
 		return target;
 	}
+
+	/**
+	 * Materialize the first 2D slice of a {@link RandomAccessibleInterval}
+	 * of {@link FloatType} into a new ImageJ {@link FloatProcessor}.
+	 *
+	 * @param source
+	 * @return
+	 */
+	public static FloatProcessor materialize(final RandomAccessibleInterval<FloatType> source) {
+
+		return materialize(
+				source,
+				new FloatProcessor((int) source.dimension(0), (int) source.dimension(1)));
+	}
 }